@@ -0,0 +1,122 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simpledb.BufferPool;
+import simpledb.Database;
+import simpledb.DbException;
+import simpledb.DbFileIterator;
+import simpledb.Dictionary;
+import simpledb.HeapFile;
+import simpledb.HeapFileEncoder;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Utility;
+
+/**
+ * Measures a full scan of a table of 50000 rows of three int columns, read
+ * from a cold BufferPool, for a range of page sizes and with plain and
+ * slotted pages, as the pagesize and slotted catalog options lay a table
+ * out. The table is written with HeapFileEncoder in the default page size,
+ * and rewritten in the layout being measured with HeapFile.rewriteAs, as
+ * Catalog.loadSchema does; every scan starts with an empty BufferPool, so
+ * that it reads all of the pages of the file, from the operating system's
+ * cache.
+ * <p>
+ * Run it with the other benchmarks' jar:
+ * <pre>
+ * java -cp src/bench/target/benchmarks.jar org.openjdk.jmh.Main ScanBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ScanBenchmark {
+
+    static final int ROWS = 50000;
+    static final int COLUMNS = 3;
+
+    /** Bytes per page of the table */
+    @Param({ "4096", "16384", "65536" })
+    public int pageSize;
+
+    /** Whether the table is stored in SlottedHeapPages */
+    @Param({ "false", "true" })
+    public boolean slotted;
+
+    private File dir;
+    private HeapFile table;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        Database.reset();
+        dir = File.createTempFile("scan", "");
+        dir.delete();
+        dir.mkdir();
+        Random random = new Random(0);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int r = 0; r < ROWS; r++) {
+            ArrayList<Integer> row = new ArrayList<Integer>(COLUMNS);
+            for (int c = 0; c < COLUMNS; c++) {
+                row.add(random.nextInt());
+            }
+            rows.add(row);
+        }
+        File f = new File(dir, "scan.dat");
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), COLUMNS);
+        HeapFile plain = new HeapFile(f, Utility.getTupleDesc(COLUMNS));
+        table = new HeapFile(f, Utility.getTupleDesc(COLUMNS), slotted,
+                new Dictionary[COLUMNS], false, pageSize);
+        plain.rewriteAs(table);
+        Database.getCatalog().addTable(table, "scan");
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyPool() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    @TearDown(Level.Trial)
+    public void drop() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int scan() throws DbException, IOException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+}
@@ -0,0 +1,444 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import simpledb.BufferPool;
+import simpledb.Database;
+import simpledb.DbException;
+import simpledb.HeapFile;
+import simpledb.HeapFileEncoder;
+import simpledb.HeapPage;
+import simpledb.HeapPageId;
+import simpledb.IntField;
+import simpledb.Permissions;
+import simpledb.RecordId;
+import simpledb.Transaction;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+import simpledb.Tuple;
+import simpledb.Utility;
+
+/**
+ * A transaction throughput benchmark, loosely modelled on TPC-C, that drives
+ * concurrent transactions through Transaction, the BufferPool and the
+ * LockManager. There are four tables of int columns, written with
+ * HeapFileEncoder:
+ * <ul>
+ * <li> district (d_id, next_o_id, ytd): a few hot rows that most
+ * transactions update;
+ * <li> customer (c_id, d_id, balance, payment_cnt);
+ * <li> stock (i_id, quantity, order_cnt);
+ * <li> orders (o_id, d_id, c_id, i_id, quantity): one row per order line,
+ * inserted by new orders and deleted by deliveries.
+ * </ul>
+ * The transactions are
+ * <ul>
+ * <li> newOrder: updates the next order id of a district, reads a
+ * customer, and for each of its lines updates a stock row and inserts an
+ * order line;
+ * <li> payment: updates the ytd of a district and the balance of a
+ * customer;
+ * <li> orderStatus: point reads of a customer and of some stock rows;
+ * <li> delivery: deletes the order lines found on a page of orders;
+ * <li> mixed: one of the above, 40/30/20/10.
+ * </ul>
+ * Rows are found by their RecordId, as the tables are not indexed:
+ * HeapFileEncoder writes the rows of the customer, district and stock
+ * tables in order, and they are never moved. Rows that conflict are locked
+ * in the same order by every transaction, so that aborts come from the lock
+ * manager giving up on waits, not from the workload deadlocking itself.
+ * Order lines are inserted through HeapFile.insertTuple, which looks for
+ * room from page 0 on and write locks every page it looks at, full or not.
+ * Each new order therefore holds X locks on all the full pages of orders
+ * ahead of the first one with room until it commits, so new orders run one
+ * at a time, and deliveries wait for them on any page they lock; the
+ * newOrder and mixed results measure that as much as the lock manager.
+ * <p>
+ * Each benchmark is run in throughput and sample time mode; the commits and
+ * aborts counters give the abort rate. main runs all of them for a range of
+ * thread counts and BufferPool sizes and prints throughput, p50 and p99
+ * latency and the abort rate of each; the usual JMH command line works as
+ * well, with -t for the thread count and -p poolPages=... for the pool size.
+ * src/bench/pom.xml builds the benchmarks, with the simpledb sources, into
+ * target/benchmarks.jar:
+ * <pre>
+ * mvn -f src/bench/pom.xml package
+ * java -jar src/bench/target/benchmarks.jar
+ * </pre>
+ * The jar runs main; the transactions log to the file "log" in the working
+ * directory, like the rest of simpledb.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TpccLiteBenchmark {
+
+    static final int DISTRICTS = 10;
+    static final int CUSTOMERS = 30000;
+    static final int ITEMS = 100000;
+    static final int INITIAL_ORDER_LINES = 30000;
+    static final int LINES_PER_ORDER = 5;
+    static final int LINES_PER_DELIVERY = 20;
+
+    static final int[] THREADS = { 1, 2, 4, 8, 16 };
+    static final String[] POOL_PAGES = { "128", "1024" };
+
+    /** The number of pages in the BufferPool */
+    @Param({ "128", "1024" })
+    public int poolPages;
+
+    private File dir;
+    private HeapFile district;
+    private HeapFile customer;
+    private HeapFile stock;
+    private HeapFile orders;
+    private int customersPerPage;
+    private int stockPerPage;
+    private int districtsPerPage;
+    private int ordersPerPage;
+
+    /**
+     * The outcomes of the transactions run by one thread, reported by JMH as
+     * secondary results, in transactions per unit of time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Outcomes {
+        public long commits;
+        public long aborts;
+    }
+
+    /** The random choices of one thread */
+    @State(Scope.Thread)
+    public static class Choices {
+        final Random random = new Random();
+    }
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        Database.reset();
+        Database.resetBufferPool(poolPages);
+        dir = File.createTempFile("tpcc", "");
+        dir.delete();
+        dir.mkdir();
+        Random random = new Random(0);
+
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int d = 0; d < DISTRICTS; d++) {
+            rows.add(row(d, INITIAL_ORDER_LINES / LINES_PER_ORDER / DISTRICTS, 0));
+        }
+        district = table("district", rows, 3);
+
+        rows.clear();
+        for (int c = 0; c < CUSTOMERS; c++) {
+            rows.add(row(c, c % DISTRICTS, 0, 0));
+        }
+        customer = table("customer", rows, 4);
+
+        rows.clear();
+        for (int i = 0; i < ITEMS; i++) {
+            rows.add(row(i, 10 + random.nextInt(91), 0));
+        }
+        stock = table("stock", rows, 3);
+
+        rows.clear();
+        for (int l = 0; l < INITIAL_ORDER_LINES; l++) {
+            rows.add(row(l / LINES_PER_ORDER, random.nextInt(DISTRICTS),
+                    random.nextInt(CUSTOMERS), random.nextInt(ITEMS), 1 + random.nextInt(10)));
+        }
+        orders = table("orders", rows, 5);
+
+        districtsPerPage = slotsPerPage(district);
+        customersPerPage = slotsPerPage(customer);
+        stockPerPage = slotsPerPage(stock);
+        ordersPerPage = slotsPerPage(orders);
+    }
+
+    @TearDown(Level.Trial)
+    public void drop() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static ArrayList<Integer> row(int... values) {
+        ArrayList<Integer> row = new ArrayList<Integer>(values.length);
+        for (int v : values) {
+            row.add(v);
+        }
+        return row;
+    }
+
+    private HeapFile table(String name, ArrayList<ArrayList<Integer>> rows, int columns)
+            throws IOException {
+        File f = new File(dir, name + ".dat");
+        HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), columns);
+        return Utility.openHeapFile(columns, name + "_", f);
+    }
+
+    /** The number of rows on a page of a table, as HeapPage lays it out */
+    private static int slotsPerPage(HeapFile table) {
+        int recordSize = table.getTupleDesc().getSize();
+        return (BufferPool.getPageSize() * 8) / (recordSize * 8 + 1);
+    }
+
+    /** The RecordId of the row numbered n, written by HeapFileEncoder */
+    private static RecordId rowId(HeapFile table, int perPage, int n) {
+        return new RecordId(new HeapPageId(table.getId(), n / perPage), n % perPage);
+    }
+
+    /**
+     * Reads a row, locking it in the specified mode.
+     * @throws DbException if it is not there any more
+     */
+    private static Tuple read(TransactionId tid, RecordId rid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid, perm);
+        Tuple t = page.getTuple(rid.tupleno());
+        if (t == null) {
+            throw new DbException("row " + rid.tupleno() + " of " + rid.getPageId() + " is gone");
+        }
+        return t;
+    }
+
+    /**
+     * Adds delta to the specified column of a row.
+     * @return the new value
+     */
+    private static int add(TransactionId tid, RecordId rid, int column, int delta)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple t = read(tid, rid, Permissions.READ_WRITE);
+        Tuple replacement = new Tuple(t.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            replacement.setField(i, t.getField(i));
+        }
+        int value = ((IntField) t.getField(column)).getValue() + delta;
+        replacement.setField(column, new IntField(value));
+        Database.getBufferPool().updateTuple(tid, t, replacement);
+        return value;
+    }
+
+    /** A transaction body, run by run */
+    private interface Body {
+        void run(TransactionId tid) throws DbException, IOException, TransactionAbortedException;
+    }
+
+    /**
+     * Runs a transaction, and commits it, or aborts it if the lock manager
+     * gave up on it or it found the rows it wanted gone.
+     */
+    private static void run(Body body, Outcomes outcomes) throws IOException {
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            body.run(t.getId());
+        } catch (TransactionAbortedException e) {
+            t.abort();
+            outcomes.aborts++;
+            return;
+        } catch (DbException e) {
+            t.abort();
+            outcomes.aborts++;
+            return;
+        }
+        t.commit();
+        outcomes.commits++;
+    }
+
+    @Benchmark
+    public void newOrder(final Choices choices, Outcomes outcomes) throws IOException {
+        final Random random = choices.random;
+        final int d = random.nextInt(DISTRICTS);
+        final int c = d + DISTRICTS * random.nextInt(CUSTOMERS / DISTRICTS);
+        final int[] items = new int[LINES_PER_ORDER];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = random.nextInt(ITEMS);
+        }
+        // stock rows are locked in order
+        Arrays.sort(items);
+        run(new Body() {
+            public void run(TransactionId tid)
+                    throws DbException, IOException, TransactionAbortedException {
+                int order = add(tid, rowId(district, districtsPerPage, d), 1, 1);
+                read(tid, rowId(customer, customersPerPage, c), Permissions.READ_ONLY);
+                for (int item : items) {
+                    int quantity = 1 + random.nextInt(10);
+                    add(tid, rowId(stock, stockPerPage, item), 2, 1);
+                    Tuple line = new Tuple(orders.getTupleDesc());
+                    line.setField(0, new IntField(order));
+                    line.setField(1, new IntField(d));
+                    line.setField(2, new IntField(c));
+                    line.setField(3, new IntField(item));
+                    line.setField(4, new IntField(quantity));
+                    Database.getBufferPool().insertTuple(tid, orders.getId(), line);
+                }
+            }
+        }, outcomes);
+    }
+
+    @Benchmark
+    public void payment(Choices choices, Outcomes outcomes) throws IOException {
+        final Random random = choices.random;
+        final int d = random.nextInt(DISTRICTS);
+        final int c = d + DISTRICTS * random.nextInt(CUSTOMERS / DISTRICTS);
+        final int amount = 1 + random.nextInt(5000);
+        run(new Body() {
+            public void run(TransactionId tid)
+                    throws DbException, IOException, TransactionAbortedException {
+                add(tid, rowId(district, districtsPerPage, d), 2, amount);
+                RecordId rid = rowId(customer, customersPerPage, c);
+                add(tid, rid, 2, -amount);
+                add(tid, rid, 3, 1);
+            }
+        }, outcomes);
+    }
+
+    @Benchmark
+    public void orderStatus(Choices choices, Outcomes outcomes) throws IOException {
+        final Random random = choices.random;
+        final int c = random.nextInt(CUSTOMERS);
+        final int[] items = new int[LINES_PER_ORDER];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = random.nextInt(ITEMS);
+        }
+        run(new Body() {
+            public void run(TransactionId tid)
+                    throws DbException, IOException, TransactionAbortedException {
+                read(tid, rowId(customer, customersPerPage, c), Permissions.READ_ONLY);
+                for (int item : items) {
+                    read(tid, rowId(stock, stockPerPage, item), Permissions.READ_ONLY);
+                }
+            }
+        }, outcomes);
+    }
+
+    @Benchmark
+    public void delivery(Choices choices, Outcomes outcomes) throws IOException {
+        final int pageNo = choices.random.nextInt(orders.numPages());
+        run(new Body() {
+            public void run(TransactionId tid)
+                    throws DbException, IOException, TransactionAbortedException {
+                // rows are locked one by one, in slot order, rather than
+                // by reading the page, so that new orders can go on
+                // inserting into the rest of the table
+                HeapPageId pid = new HeapPageId(orders.getId(), pageNo);
+                int delivered = 0;
+                for (int slot = 0; slot < ordersPerPage && delivered < LINES_PER_DELIVERY; slot++) {
+                    RecordId rid = new RecordId(pid, slot);
+                    HeapPage page = (HeapPage) Database.getBufferPool()
+                            .getPage(tid, rid, Permissions.READ_WRITE);
+                    Tuple t = page.getTuple(slot);
+                    if (t != null) {
+                        Database.getBufferPool().deleteTuple(tid, t);
+                        delivered++;
+                    }
+                }
+            }
+        }, outcomes);
+    }
+
+    @Benchmark
+    public void mixed(Choices choices, Outcomes outcomes) throws IOException {
+        int kind = choices.random.nextInt(100);
+        if (kind < 40) {
+            newOrder(choices, outcomes);
+        } else if (kind < 70) {
+            payment(choices, outcomes);
+        } else if (kind < 90) {
+            orderStatus(choices, outcomes);
+        } else {
+            delivery(choices, outcomes);
+        }
+    }
+
+    /**
+     * Runs the benchmarks for each thread count in THREADS and pool size in
+     * POOL_PAGES, or those whose names match the regular expression given,
+     * and prints a summary.
+     */
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : TpccLiteBenchmark.class.getSimpleName();
+        ArrayList<RunResult> results = new ArrayList<RunResult>();
+        for (int threads : THREADS) {
+            Options opts = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .param("poolPages", POOL_PAGES)
+                    .build();
+            results.addAll(new Runner(opts).run());
+        }
+        report(results);
+    }
+
+    /**
+     * Prints, for each benchmark, thread count and pool size, the
+     * throughput in committed transactions per second, the p50 and p99
+     * latency in microseconds, and the share of the transactions that
+     * aborted.
+     */
+    static void report(Collection<RunResult> results) {
+        System.out.println();
+        System.out.printf("%-14s %7s %6s %12s %10s %10s %8s%n",
+                "benchmark", "threads", "pool", "txn/s", "p50 us", "p99 us", "aborts");
+        for (RunResult r : results) {
+            if (r.getParams().getMode() != Mode.Throughput) {
+                continue;
+            }
+            String name = r.getParams().getBenchmark();
+            name = name.substring(name.lastIndexOf('.') + 1);
+            int threads = r.getParams().getThreads();
+            String pool = r.getParams().getParam("poolPages");
+            Result commits = r.getSecondaryResults().get("commits");
+            Result aborts = r.getSecondaryResults().get("aborts");
+            // per microsecond
+            double committed = commits == null ? 0 : commits.getScore();
+            double aborted = aborts == null ? 0 : aborts.getScore();
+            double abortRate = committed + aborted == 0 ? 0 : aborted / (committed + aborted);
+            double p50 = Double.NaN;
+            double p99 = Double.NaN;
+            for (RunResult s : results) {
+                if (s.getParams().getMode() == Mode.SampleTime
+                        && s.getParams().getBenchmark().equals(r.getParams().getBenchmark())
+                        && s.getParams().getThreads() == threads
+                        && s.getParams().getParam("poolPages").equals(pool)) {
+                    p50 = s.getPrimaryResult().getStatistics().getPercentile(50.0);
+                    p99 = s.getPrimaryResult().getStatistics().getPercentile(99.0);
+                }
+            }
+            System.out.printf("%-14s %7d %6s %12.0f %10.1f %10.1f %7.2f%%%n",
+                    name, threads, pool, committed * 1e6,
+                    p50, p99, 100 * abortRate);
+        }
+    }
+}
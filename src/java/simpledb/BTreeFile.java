@@ -0,0 +1,366 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeFile is an IndexFile that stores (key, RecordId) entries for one
+ * field of a base table in a B+ tree. Keys may be of any Type and need not
+ * be unique. Leaves are linked left to right, so point lookups and range
+ * scans descend to the first candidate leaf once and then walk the leaf
+ * chain. The format of the pages is described in BTreePage.
+ * <p>
+ * Deletes simply remove the entry from its leaf; pages are never merged, so
+ * a leaf may become empty and stay in the chain until it is reused by later
+ * inserts.
+ * <p>
+ * Only the leaves are locked until the end of the transaction. The pages
+ * above them are locked with lock coupling on the way down, READ_ONLY, so
+ * that inserts do not wait for each other unless they change the same leaf.
+ * An insert that splits a leaf descends again with the pages it may change
+ * locked READ_WRITE, and keeps those.
+ *
+ * @see simpledb.BTreePage
+ */
+public class BTreeFile implements IndexFile {
+
+    private static final long serialVersionUID = 1L;
+    static final int ROOT_PTR_PGNO = 0;
+
+    private File file;
+    private int tableid;
+    private int keyField;
+    /** Bytes per page; the page size of the base table */
+    private int pageSize;
+
+    /**
+     * Constructs a B+ tree index backed by the specified file, creating an
+     * empty tree if the file does not exist yet. The base table must already
+     * have been added to the catalog.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            index.
+     * @param tableid
+     *            the id of the indexed base table
+     * @param keyField
+     *            the index of the key field in the base table
+     */
+    public BTreeFile(File f, int tableid, int keyField) {
+        this.file = f;
+        this.tableid = tableid;
+        this.keyField = keyField;
+        this.pageSize = Database.getCatalog().getPageSize(tableid);
+        if (file.length() == 0) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.write(BTreePage.createRootPtrPageData(1, pageSize));
+                raf.write(BTreePage.createEmptyPageData(BTreePage.LEAF, pageSize));
+                raf.close();
+            } catch (IOException e) {
+                throw new RuntimeException("failed to create empty B+ tree in " + f, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the File backing this BTreeFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this BTreeFile, the hash code of
+     * the absolute file name of the backing file.
+     */
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    public int getKeyField() {
+        return keyField;
+    }
+
+    public Type getKeyType() {
+        return getTupleDesc().getFieldType(keyField);
+    }
+
+    /**
+     * Returns the TupleDesc of the base table; the iterators of this file
+     * return base table tuples.
+     */
+    public TupleDesc getTupleDesc() {
+        return Database.getCatalog().getTupleDesc(tableid);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte[] b = new byte[pageSize];
+            raf.seek((long) pageSize * pid.pageNumber());
+            raf.readFully(b);
+            raf.close();
+            return new BTreePage(new IndexPageId(pid.getTableId(), pid.pageNumber()), b);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("page " + pid + " does not exist in " + file);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek((long) pageSize * page.getId().pageNumber());
+        raf.write(page.getPageData());
+        raf.close();
+    }
+
+    /**
+     * Returns the number of pages in this BTreeFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / pageSize);
+    }
+
+    /**
+     * Returns the number of bytes per page of this index, which is the page
+     * size of its base table.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * Estimates the height of the tree from the size of the file, assuming
+     * full internal pages, and adds one for the root pointer page.
+     */
+    public int pagesPerProbe() {
+        int fanout = BTreePage.getMaxInternalEntries(getKeyType(), pageSize) + 1;
+        int pages = Math.max(numPages() - 1, 1);
+        return 2 + (int) Math.ceil(Math.log(pages) / Math.log(fanout));
+    }
+
+    BTreePage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return (BTreePage) Database.getBufferPool().getPage(tid,
+                new IndexPageId(getId(), pgNo), perm);
+    }
+
+    /**
+     * Appends a new, empty page of the specified category to the file and
+     * returns it, locked for writing.
+     */
+    private BTreePage allocatePage(TransactionId tid, int category)
+            throws IOException, TransactionAbortedException, DbException {
+        int pgNo;
+        synchronized (this) {
+            pgNo = numPages();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek((long) pageSize * pgNo);
+            raf.write(BTreePage.createEmptyPageData(category, pageSize));
+            raf.close();
+        }
+        return getPage(tid, pgNo, Permissions.READ_WRITE);
+    }
+
+    /**
+     * Descends from the root to the leftmost leaf that may contain key and
+     * returns it, fetched with the specified permissions. A null key
+     * descends to the leftmost leaf of the tree.
+     * <p>
+     * The pages above the leaf only guide the descent: they are locked
+     * READ_ONLY, and released as soon as the page below them is locked
+     * (lock coupling), unless tid held them before. While tid holds a page,
+     * no other transaction can split the pages below it, which needs the
+     * page locked READ_WRITE.
+     *
+     * @param held if not null, the pages of the descent that tid held
+     *            before are added to it
+     */
+    BTreePage findLeaf(TransactionId tid, Field key, Permissions perm, Set<PageId> held)
+            throws TransactionAbortedException, DbException {
+        if (held == null) {
+            held = new HashSet<PageId>();
+        }
+        BTreePage parent = lock(tid, ROOT_PTR_PGNO, Permissions.READ_ONLY, held);
+        int pgNo = parent.getRoot();
+        while (true) {
+            BTreePage page = lock(tid, pgNo, Permissions.READ_ONLY, held);
+            if (page.isLeaf() && perm == Permissions.READ_WRITE) {
+                // the page is only known to be the leaf now
+                IndexPages.unlock(tid, page, held);
+                page = getPage(tid, pgNo, Permissions.READ_WRITE);
+            }
+            IndexPages.unlock(tid, parent, held);
+            if (page.isLeaf()) {
+                return page;
+            }
+            int child = key == null ? 0 : page.findFirst(key);
+            parent = page;
+            pgNo = page.getChild(child);
+        }
+    }
+
+    /**
+     * Descends to the leaf for key like findLeaf, for an insert that splits
+     * the leaf, locking the pages READ_WRITE from the root pointer down. A
+     * split stops at the first page above the leaf that is not full, so the
+     * pages above such a page are released again as soon as it is locked,
+     * unless tid held them before; the internal pages that stay locked are
+     * appended to path, root first.
+     */
+    private BTreePage findLeafToSplit(TransactionId tid, Field key, ArrayList<BTreePage> path)
+            throws TransactionAbortedException, DbException {
+        Set<PageId> held = new HashSet<PageId>();
+        BTreePage rootPtr = lock(tid, ROOT_PTR_PGNO, Permissions.READ_WRITE, held);
+        BTreePage page = lock(tid, rootPtr.getRoot(), Permissions.READ_WRITE, held);
+        while (true) {
+            if (!page.isFull()) {
+                if (rootPtr != null) {
+                    IndexPages.unlock(tid, rootPtr, held);
+                    rootPtr = null;
+                }
+                for (BTreePage above : path) {
+                    IndexPages.unlock(tid, above, held);
+                }
+                path.clear();
+            }
+            if (page.isLeaf()) {
+                return page;
+            }
+            path.add(page);
+            page = lock(tid, page.getChild(page.findFirst(key)), Permissions.READ_WRITE, held);
+        }
+    }
+
+    /**
+     * Fetches a page of this file for a descent.
+     * @see IndexPages#lock
+     */
+    private BTreePage lock(TransactionId tid, int pgNo, Permissions perm, Set<PageId> held)
+            throws TransactionAbortedException, DbException {
+        return (BTreePage) IndexPages.lock(tid, new IndexPageId(getId(), pgNo), perm, held);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new DbException("Cannot index a tuple that is not stored in table " + tableid);
+        }
+        Field key = t.getField(keyField);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        ArrayList<BTreePage> path = new ArrayList<BTreePage>();
+
+        Set<PageId> held = new HashSet<PageId>();
+        BTreePage leaf = findLeaf(tid, key, Permissions.READ_WRITE, held);
+        if (leaf.isFull()) {
+            // start again, locking the pages the split may reach
+            IndexPages.unlock(tid, leaf, held);
+            leaf = findLeafToSplit(tid, key, path);
+        }
+        leaf.insertLeafEntry(leaf.findAfter(key), key, rid);
+        IndexPages.dirtied(tid, leaf, dirtied);
+        if (!leaf.isOverfull()) {
+            return dirtied;
+        }
+
+        BTreePage right = allocatePage(tid, BTreePage.LEAF);
+        Field sep = leaf.splitLeafInto(right);
+        IndexPages.dirtied(tid, right, dirtied);
+        insertIntoParent(tid, path, leaf, sep, right, dirtied);
+        return dirtied;
+    }
+
+    /**
+     * Inserts the separator between a page that was just split and its new
+     * right sibling into the parent, splitting parents as needed.
+     *
+     * @param path the internal pages above left, root first, up to the
+     *            first one that is not full; the root pointer page is
+     *            locked READ_WRITE if they go up to the root
+     */
+    private void insertIntoParent(TransactionId tid, ArrayList<BTreePage> path,
+            BTreePage left, Field sep, BTreePage right, ArrayList<Page> dirtied)
+            throws IOException, TransactionAbortedException, DbException {
+        while (true) {
+            int leftPgNo = left.getId().pageNumber();
+            int rightPgNo = right.getId().pageNumber();
+            if (path.isEmpty()) {
+                // the root was split: grow the tree by one level
+                BTreePage root = allocatePage(tid, BTreePage.INTERNAL);
+                root.initRoot(leftPgNo, sep, rightPgNo);
+                BTreePage rootPtr = getPage(tid, ROOT_PTR_PGNO, Permissions.READ_WRITE);
+                IndexPages.dirtied(tid, root, dirtied);
+                rootPtr.setRoot(root.getId().pageNumber());
+                IndexPages.dirtied(tid, rootPtr, dirtied);
+                return;
+            }
+
+            BTreePage parent = path.remove(path.size() - 1);
+            int pos = 0;
+            while (parent.getChild(pos) != leftPgNo)
+                pos++;
+            parent.insertInternalEntry(pos, sep, rightPgNo);
+            IndexPages.dirtied(tid, parent, dirtied);
+            if (!parent.isOverfull()) {
+                return;
+            }
+
+            BTreePage newRight = allocatePage(tid, BTreePage.INTERNAL);
+            sep = parent.splitInternalInto(newRight);
+            IndexPages.dirtied(tid, newRight, dirtied);
+            left = parent;
+            right = newRight;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        Field key = t.getField(keyField);
+        BTreePage leaf = findLeaf(tid, key, Permissions.READ_WRITE, null);
+        int pos = leaf.findFirst(key);
+        while (true) {
+            if (pos == leaf.getNumEntries()) {
+                if (leaf.getNextLeaf() == 0)
+                    break;
+                leaf = getPage(tid, leaf.getNextLeaf(), Permissions.READ_WRITE);
+                pos = 0;
+                continue;
+            }
+            if (!leaf.getKey(pos).equals(key))
+                break;
+            if (leaf.getRecordId(pos).equals(rid)) {
+                leaf.deleteLeafEntry(pos);
+                return leaf;
+            }
+            pos++;
+        }
+        throw new DbException("The index does not contain an entry for this tuple: " + t);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new BTreeFileIterator(tid, this, null);
+    }
+
+    // see IndexFile.java for javadocs
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        if (!supports(ipred.getOp())) {
+            throw new IllegalArgumentException("B+ tree cannot evaluate " + ipred);
+        }
+        return new BTreeFileIterator(tid, this, ipred);
+    }
+}
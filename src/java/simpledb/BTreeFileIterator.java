@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the base table tuples referenced by the entries of a
+ * BTreeFile, in key order. If a predicate is given, only the leaves that can
+ * hold matching keys are visited: the scan starts at the first candidate
+ * leaf and stops as soon as the keys are past the end of the range.
+ */
+public class BTreeFileIterator implements DbFileIterator {
+
+    private static final long serialVersionUID = 1L;
+    TransactionId tid;
+    private BTreeFile file;
+    private IndexPredicate ipred;
+    BTreePage currentLeaf;
+    int currentPos;
+    Tuple nextTuple;
+    boolean done;
+
+    /**
+     * @param ipred the predicate on the key field, or null to return the
+     *          tuples of all entries
+     */
+    public BTreeFileIterator(TransactionId tid, BTreeFile file, IndexPredicate ipred) {
+        this.tid = tid;
+        this.file = file;
+        this.ipred = ipred;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        Field start = null;
+        if (ipred != null) {
+            switch (ipred.getOp()) {
+            case EQUALS:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                start = ipred.getField();
+                break;
+            default:
+                break;
+            }
+        }
+        currentLeaf = file.findLeaf(tid, start, Permissions.READ_ONLY, null);
+        currentPos = start == null ? 0 : currentLeaf.findFirst(start);
+        nextTuple = null;
+        done = false;
+    }
+
+    @Override
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (currentLeaf == null) {
+            return false;
+        }
+        if (nextTuple == null) {
+            nextTuple = fetchNext();
+        }
+        return nextTuple != null;
+    }
+
+    @Override
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("There are no more tuples in the index");
+        }
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    public void close() {
+        currentLeaf = null;
+        nextTuple = null;
+    }
+
+    /**
+     * Returns the base tuple of the next matching entry, or null once the
+     * range is exhausted.
+     */
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (!done) {
+            if (currentPos >= currentLeaf.getNumEntries()) {
+                if (currentLeaf.getNextLeaf() == 0) {
+                    done = true;
+                    break;
+                }
+                currentLeaf = file.getPage(tid, currentLeaf.getNextLeaf(), Permissions.READ_ONLY);
+                currentPos = 0;
+                continue;
+            }
+            Field key = currentLeaf.getKey(currentPos);
+            RecordId rid = currentLeaf.getRecordId(currentPos);
+            currentPos++;
+            if (ipred != null && !ipred.matches(key)) {
+                // keys are sorted, so once an upper bound fails nothing
+                // further can match
+                Predicate.Op op = ipred.getOp();
+                if (op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                        || op == Predicate.Op.LESS_THAN_OR_EQ) {
+                    done = true;
+                    break;
+                }
+                continue;
+            }
+            HeapPage hp = (HeapPage) Database.getBufferPool().getPage(tid,
+                    rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = hp.getTuple(rid.tupleno());
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,398 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Each instance of BTreePage stores one node of a BTreeFile and implements
+ * the Page interface that is used by BufferPool.
+ * <p>
+ * Every page starts with a one byte category, an integer count of the
+ * entries on the page and an integer page number of the next leaf (0 if
+ * there is none -- page 0 of a BTreeFile is never a leaf). The rest of the
+ * page depends on the category:
+ * <ul>
+ * <li> LEAF pages hold <tt>numEntries</tt> entries, each a key followed by
+ * the page number and tuple number of the base table tuple it points to.
+ * Entries are sorted by key.
+ * <li> INTERNAL pages hold a child page number followed by
+ * <tt>numEntries</tt> (key, child page number) pairs. Every key in the
+ * subtree of child i is &lt;= key i and &gt;= key i-1.
+ * <li> The ROOT_PTR page is page 0 of every BTreeFile. It is laid out like
+ * an internal page with no keys; its only child is the root of the tree.
+ * </ul>
+ * An all zero page is an empty leaf.
+ *
+ * @see BTreeFile
+ * @see BufferPool
+ */
+public class BTreePage implements Page {
+
+    static final int LEAF = 0;
+    static final int INTERNAL = 1;
+    static final int ROOT_PTR = 2;
+
+    /** Bytes used by the category, entry count and next leaf pointer. */
+    static final int HEADER_SIZE = 1 + 4 + 4;
+    /** Bytes used by the RecordId of a leaf entry. */
+    static final int RID_SIZE = 4 + 4;
+    /** Bytes used by a child pointer of an internal entry. */
+    static final int CHILD_SIZE = 4;
+
+    IndexPageId id;
+    int baseTableId;
+    Type keyType;
+    int category;
+    int numEntries;
+    int nextLeaf;
+    int maxEntries;
+    /** Bytes per page, including header; the length of the page data */
+    int pageSize;
+
+    Field keys[];
+    int children[];
+    RecordId rids[];
+
+    TransactionId lastTid;
+    byte[] oldData;
+
+    /**
+     * Create a BTreePage from a set of bytes of data read from disk. The key
+     * type and base table are taken from the BTreeFile registered in the
+     * catalog under id.getTableId().
+     *
+     * @see BTreeFile
+     */
+    public BTreePage(IndexPageId id, byte[] data) throws IOException {
+        this.id = id;
+        BTreeFile file = (BTreeFile) Database.getCatalog().getDbFile(id.getTableId());
+        this.baseTableId = file.getTableId();
+        this.keyType = file.getKeyType();
+        this.pageSize = data.length;
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        category = dis.readByte();
+        numEntries = dis.readInt();
+        nextLeaf = dis.readInt();
+        maxEntries = category == LEAF ? getMaxLeafEntries(keyType, pageSize)
+                : getMaxInternalEntries(keyType, pageSize);
+
+        // one spare slot so that an insert can overflow the page right
+        // before it is split
+        keys = new Field[maxEntries + 1];
+        try {
+            if (category == LEAF) {
+                rids = new RecordId[maxEntries + 1];
+                for (int i = 0; i < numEntries; i++) {
+                    keys[i] = keyType.parse(dis);
+                    HeapPageId pid = new HeapPageId(baseTableId, dis.readInt());
+                    rids[i] = new RecordId(pid, dis.readInt());
+                }
+            } else {
+                children = new int[maxEntries + 2];
+                children[0] = dis.readInt();
+                for (int i = 0; i < numEntries; i++) {
+                    keys[i] = keyType.parse(dis);
+                    children[i + 1] = dis.readInt();
+                }
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("parsing error!");
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of entries that fit on a leaf page of the specified
+     *         size with keys of the specified type
+     */
+    static int getMaxLeafEntries(Type keyType, int pageSize) {
+        return (pageSize - HEADER_SIZE) / (keyType.getLen() + RID_SIZE);
+    }
+
+    /**
+     * @return the number of keys that fit on an internal page of the
+     *         specified size with keys of the specified type
+     */
+    static int getMaxInternalEntries(Type keyType, int pageSize) {
+        return (pageSize - HEADER_SIZE - CHILD_SIZE)
+                / (keyType.getLen() + CHILD_SIZE);
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * BTreePage of the specified category and size.
+     */
+    public static byte[] createEmptyPageData(int category, int pageSize) {
+        byte[] data = new byte[pageSize];
+        data[0] = (byte) category;
+        return data;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to a ROOT_PTR
+     * page of the specified size pointing at the specified root page.
+     */
+    public static byte[] createRootPtrPageData(int rootPgNo, int pageSize) {
+        byte[] data = createEmptyPageData(ROOT_PTR, pageSize);
+        int off = HEADER_SIZE;
+        data[off] = (byte) (rootPgNo >>> 24);
+        data[off + 1] = (byte) (rootPgNo >>> 16);
+        data[off + 2] = (byte) (rootPgNo >>> 8);
+        data[off + 3] = (byte) rootPgNo;
+        return data;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public BTreePage getBeforeImage() {
+        try {
+            return new BTreePage(id, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public IndexPageId getId() {
+        return id;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @see #BTreePage
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(category);
+            dos.writeInt(numEntries);
+            dos.writeInt(nextLeaf);
+            if (category == LEAF) {
+                for (int i = 0; i < numEntries; i++) {
+                    keys[i].serialize(dos);
+                    dos.writeInt(rids[i].getPageId().pageNumber());
+                    dos.writeInt(rids[i].tupleno());
+                }
+            } else {
+                dos.writeInt(children[0]);
+                for (int i = 0; i < numEntries; i++) {
+                    keys[i].serialize(dos);
+                    dos.writeInt(children[i + 1]);
+                }
+            }
+            // padding
+            dos.write(new byte[pageSize - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastTid = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return lastTid;
+    }
+
+    public boolean isLeaf() {
+        return category == LEAF;
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    /**
+     * @return true if the page holds more entries than fit on disk and has
+     *         to be split before it is written
+     */
+    public boolean isOverfull() {
+        return numEntries > maxEntries;
+    }
+
+    /**
+     * @return true if one more entry would make the page overfull, so that
+     *         an insert into it, or into a page below it, may split it
+     */
+    public boolean isFull() {
+        return numEntries >= maxEntries;
+    }
+
+    public Field getKey(int i) {
+        return keys[i];
+    }
+
+    public RecordId getRecordId(int i) {
+        return rids[i];
+    }
+
+    public int getChild(int i) {
+        return children[i];
+    }
+
+    /** @return the page number of the root; only valid on the ROOT_PTR page */
+    public int getRoot() {
+        return children[0];
+    }
+
+    public void setRoot(int pgNo) {
+        children[0] = pgNo;
+    }
+
+    /** @return the page number of the next leaf, or 0 if this is the last leaf */
+    public int getNextLeaf() {
+        return nextLeaf;
+    }
+
+    /**
+     * Returns the position of the first key that is &gt;= key, or
+     * getNumEntries() if there is none. On an internal page this is the
+     * child to descend into to find the leftmost entry with the key; on a
+     * leaf it is the first entry that may equal the key.
+     */
+    public int findFirst(Field key) {
+        int lo = 0, hi = numEntries;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compare(Predicate.Op.LESS_THAN, key))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the position of the first key that is &gt; key, or
+     * getNumEntries() if there is none.
+     */
+    public int findAfter(Field key) {
+        int lo = 0, hi = numEntries;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Inserts a leaf entry at the specified position. The page may be left
+     * overfull, in which case the caller must split it.
+     */
+    public void insertLeafEntry(int pos, Field key, RecordId rid) {
+        System.arraycopy(keys, pos, keys, pos + 1, numEntries - pos);
+        System.arraycopy(rids, pos, rids, pos + 1, numEntries - pos);
+        keys[pos] = key;
+        rids[pos] = rid;
+        numEntries++;
+    }
+
+    /** Removes the leaf entry at the specified position. */
+    public void deleteLeafEntry(int pos) {
+        System.arraycopy(keys, pos + 1, keys, pos, numEntries - pos - 1);
+        System.arraycopy(rids, pos + 1, rids, pos, numEntries - pos - 1);
+        numEntries--;
+        keys[numEntries] = null;
+        rids[numEntries] = null;
+    }
+
+    /**
+     * Inserts key at position pos of an internal page, with rightChild as
+     * the child directly to its right. The page may be left overfull, in
+     * which case the caller must split it.
+     */
+    public void insertInternalEntry(int pos, Field key, int rightChild) {
+        System.arraycopy(keys, pos, keys, pos + 1, numEntries - pos);
+        System.arraycopy(children, pos + 1, children, pos + 2, numEntries - pos);
+        keys[pos] = key;
+        children[pos + 1] = rightChild;
+        numEntries++;
+    }
+
+    /**
+     * Turns this page into an internal page with a single key separating
+     * the two specified children. Used to grow the tree by one level.
+     */
+    public void initRoot(int leftChild, Field key, int rightChild) {
+        category = INTERNAL;
+        maxEntries = getMaxInternalEntries(keyType, pageSize);
+        keys = new Field[maxEntries + 1];
+        children = new int[maxEntries + 2];
+        rids = null;
+        numEntries = 1;
+        nextLeaf = 0;
+        children[0] = leftChild;
+        keys[0] = key;
+        children[1] = rightChild;
+    }
+
+    /**
+     * Moves the upper half of the entries on this leaf to the specified
+     * empty leaf, which is linked in directly after this one.
+     *
+     * @return the separator key to insert into the parent, i.e. the last key
+     *         remaining on this page
+     */
+    public Field splitLeafInto(BTreePage right) {
+        int keep = numEntries / 2;
+        int move = numEntries - keep;
+        System.arraycopy(keys, keep, right.keys, 0, move);
+        System.arraycopy(rids, keep, right.rids, 0, move);
+        Arrays.fill(keys, keep, numEntries, null);
+        Arrays.fill(rids, keep, numEntries, null);
+        right.numEntries = move;
+        numEntries = keep;
+
+        right.nextLeaf = nextLeaf;
+        nextLeaf = right.getId().pageNumber();
+        return keys[keep - 1];
+    }
+
+    /**
+     * Moves the keys and children above the middle key of this internal
+     * page to the specified empty internal page.
+     *
+     * @return the middle key, which is removed from this page and must be
+     *         inserted into the parent
+     */
+    public Field splitInternalInto(BTreePage right) {
+        int mid = numEntries / 2;
+        Field up = keys[mid];
+        int move = numEntries - mid - 1;
+        System.arraycopy(keys, mid + 1, right.keys, 0, move);
+        System.arraycopy(children, mid + 1, right.children, 0, move + 1);
+        Arrays.fill(keys, mid, numEntries, null);
+        right.numEntries = move;
+        numEntries = mid;
+        return up;
+    }
+}
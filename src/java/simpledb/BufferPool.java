@@ -2,9 +2,24 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,22 +29,115 @@ import java.util.Set;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * When a transaction reads consecutive pages of a HeapFile, the BufferPool
+ * reads the next pages of the file ahead of it on a background thread, so
+ * that the scan finds them in the pool instead of waiting for the disk.
+ * <p>
+ * A sequential scan of a table larger than a quarter of the pool does not
+ * push the rest of the pool out: the pages it reads go into a small ring of
+ * its own, placed where the pool evicts first, and once the ring is full the
+ * scan reuses its oldest page for the next one. A page of a ring that is
+ * fetched by anything but a scan of a large table leaves the ring and is
+ * cached like any other.
+ * <p>
+ * The BufferPool keeps the dirty page table of the log: for each dirty
+ * HeapPage changed by a logged transaction, the LSN of the first change
+ * since the page was last written. Checkpoints record it instead of
+ * writing every dirty page, and a background cleaner trickles the pages
+ * with the oldest changes to disk, after the log records describing them,
+ * so that recovery has less and less log to redo.
+ * <p>
+ * By default the pool does not steal: a page dirtied by a running
+ * transaction is never evicted. In STEAL mode (see setSteal) it is
+ * written and evicted when no clean page is left, provided its
+ * transaction is logged, so that it can be rolled back; the log is forced
+ * first, and pages that are not HeapPages are logged as a whole. The
+ * cleaner then also writes the least recently used dirty pages, so that
+ * eviction finds clean pages instead of writing one itself. Neither holds
+ * the pool while the log is forced and a page is written: a copy of the
+ * page is written, and the page stays dirty if it changed meanwhile.
+ * <p>
+ * Read-only transactions (see beginSnapshot) read HeapPages without
+ * locks, as of the last commit before they started; the versions they
+ * need are kept in a VersionStore.
  */
 public class BufferPool {
-    /** Bytes per page, including header. */ 
-    public static final int PAGE_SIZE = 4096;
+    /** Default bytes per page, including header. */ 
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    /** Bytes per page of the files created in this database, including header. */
+    private static int pageSize = DEFAULT_PAGE_SIZE;
 
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** How many pages are read ahead of a sequential scan, at most. */
+    public static final int PREFETCH_PAGES = 8;
+    /** How many consecutive pages make a scan sequential. */
+    static final int SEQUENTIAL_RUN = 3;
+    /** How many pages a scan of a large table keeps in the pool, at most. */
+    public static final int RING_PAGES = 16;
+    /** How often the cleaner writes dirty pages, in milliseconds. */
+    static final long CLEANER_INTERVAL_MILLIS = 100;
+    /** How many dirty pages the cleaner writes at a time, at most. */
+    static final int CLEANER_PAGES = 8;
     
     private Map<PageId, Page> pages;
     private ArrayList<PageId> orderOfPages;
     private int numPages;
     private LockManager lockMan;
+    /** The pages being read ahead, until they are added to the pool */
+    private Map<PageId, FutureTask<Page>> pendingReads;
+    /** The sequential scans of each transaction, by table */
+    private Map<TransactionId, Map<Integer, SequentialScan>> scans;
+    /** The scan whose ring each page is in, for the pages in a ring */
+    private Map<PageId, SequentialScan> ringPages;
+    private ThreadPoolExecutor prefetcher;
+    /** The dirty page table: the LSN of the first logged change of each
+        dirty HeapPage since it was last written */
+    private Map<PageId, Long> recLsns;
+    /** The transactions changing a page, and the end of the log when they
+        started; the page is not written until the change is logged */
+    private Map<TransactionId, Long> changing;
+    /** Trickles dirty pages to disk; null while there are none */
+    private Thread cleaner;
+    /** The pages being written without the pool held (see writeOut) */
+    private Set<PageId> writing;
+    /** Whether dirty pages of running transactions may be evicted */
+    private volatile boolean steal;
+    /** The committed versions of HeapPages that snapshots read */
+    private VersionStore versions;
     
 
+    /**
+     * Returns the page size of the files created in this database. A table
+     * can override it (see Catalog#loadSchema); the page size of every
+     * existing file is recorded with the file, and its pages are read with
+     * that size whatever the database page size is now.
+     */
+    public static int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the page size of the files created from now on.
+     *
+     * @param pageSize bytes per page, including header
+     */
+    public static void setPageSize(int pageSize) {
+        BufferPool.pageSize = pageSize;
+    }
+
+    /**
+     * Resets the page size to DEFAULT_PAGE_SIZE.
+     */
+    public static void resetPageSize() {
+        BufferPool.pageSize = DEFAULT_PAGE_SIZE;
+    }
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -40,8 +148,48 @@ public class BufferPool {
     	orderOfPages = new ArrayList<PageId>(numPages);
     	this.numPages = numPages;
     	lockMan = new LockManager();
+    	pendingReads = new HashMap<PageId, FutureTask<Page>>();
+    	scans = new HashMap<TransactionId, Map<Integer, SequentialScan>>();
+    	ringPages = new HashMap<PageId, SequentialScan>();
+    	recLsns = new HashMap<PageId, Long>();
+    	versions = new VersionStore();
+    	changing = new HashMap<TransactionId, Long>();
+    	writing = new HashSet<PageId>();
+    	// a single reader, which goes away while there is nothing to read
+    	prefetcher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+    			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+    		public Thread newThread(Runnable r) {
+    			Thread t = new Thread(r, "BufferPool prefetcher");
+    			t.setDaemon(true);
+    			return t;
+    		}
+    	});
+    	prefetcher.allowCoreThreadTimeOut(true);
     }	
 
+    /**
+     * Sets whether dirty pages of running transactions may be written and
+     * evicted to make room for other pages (STEAL), or stay in the pool
+     * until their transaction completes (NO STEAL, the default).
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /**
+     * @return true if dirty pages of running transactions may be evicted
+     */
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -59,25 +207,352 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        if (orderOfPages.size() == numPages) { 
-        	try {
-				evictPage();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null) {
+        	if (perm != Permissions.READ_ONLY) {
+        		throw new DbException("transaction " + tid.getId() + " is read-only");
+        	}
+        	if (pid instanceof HeapPageId) {
+        		SequentialScan scan = fetched(tid, pid);
+        		HeapPage p = (HeapPage) fetchPage(pid, scan);
+        		if (scan != null) {
+        			readAhead(tid, pid, scan);
+        		}
+        		return versions.read(pid, snapshot, p);
+        	}
         }
         lockMan.getLock(tid, pid, perm);
-    	if (pages.containsKey(pid)) {
-    		orderOfPages.remove(pid);
-    		orderOfPages.add(pid);
-    		return pages.get(pid);
+        return fetchLocked(tid, pid);
+    }
+
+    /**
+     * Retrieves the page of the specified row, to access only that row with
+     * the associated permissions. Locks only the row, so that transactions
+     * accessing other rows of the page do not wait, if the changes of the
+     * transaction are logged: the rollback of a transaction that shares a
+     * page with others puts back only its own rows, from the log. Otherwise
+     * it locks the whole page, as getPage(tid, pid, perm) does.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param rid the ID of the row
+     * @param perm the requested permissions on the row
+     */
+    public Page getPage(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        PageId pid = rid.getPageId();
+        if (!(pid instanceof HeapPageId) || versions.snapshotOf(tid) != null
+        		|| !Database.getLogFile().isLogged(tid)) {
+        	return getPage(tid, pid, perm);
+        }
+        lockMan.getLock(tid, rid, perm);
+        return fetchLocked(tid, pid);
+    }
+
+    /**
+     * Returns the specified page, which tid holds a lock on, reading ahead
+     * if tid is scanning its table.
+     */
+    private Page fetchLocked(TransactionId tid, PageId pid) throws TransactionAbortedException, DbException {
+        SequentialScan scan = fetched(tid, pid);
+        Page p = fetchPage(pid, scan);
+        if (scan != null) {
+        	readAhead(tid, pid, scan);
+        }
+        return p;
+    }
+
+    /**
+     * Returns the specified page from the pool, reading it if it is not
+     * there. A page that is being read ahead is not read again: the caller
+     * waits for the read ahead to finish, or runs it itself if it has not
+     * started yet, so that an old version of
+     * the page can never be added to the pool after the page was read and
+     * modified by someone else. A caller holding the pool cancels the read
+     * ahead instead, and reads the page itself.
+     *
+     * @param scan the sequential scan fetching the page, or null
+     */
+    private Page fetchPage(PageId pid, SequentialScan scan) throws TransactionAbortedException, DbException {
+    	// a caller holding the pool (the log, rolling back) cannot wait for
+    	// the prefetcher, which needs the pool to finish
+    	boolean holdsPool = Thread.holdsLock(this);
+        while (true) {
+        	FutureTask<Page> pending;
+        	PageId victim = null;
+	        synchronized (this) {
+		    	if (pages.containsKey(pid)) {
+		    		if (scan == null || scan.ring == null) {
+		    			// a page of a ring that something other than a scan
+		    			// needs is not just passing through any more
+		    			leaveRing(pid);
+			    		orderOfPages.remove(pid);
+			    		orderOfPages.add(pid);
+		    		}
+		    		return pages.get(pid);
+		    	}
+		    	pending = pendingReads.get(pid);
+		    	if (pending != null && holdsPool) {
+		    		// the prefetcher drops the page it read once it finds
+		    		// its read is no longer pending
+		    		pendingReads.remove(pid);
+		    		pending.cancel(false);
+		    		pending = null;
+		    	}
+		    	if (pending == null) {
+			        if (!recycle(scan, null) && orderOfPages.size() >= numPages) {
+			        	if (holdsPool) {
+			        		evictHere();
+			        	} else {
+			        		try {
+			        			victim = evictPage();
+			        		} catch (IOException e) {
+			        			throw new DbException("could not evict a page: " + e.getMessage());
+			        		}
+			        	}
+			        }
+			        if (victim == null) {
+			        	int tableid = pid.getTableId();
+			        	DbFile dbfile = Database.getCatalog().getDbFile(tableid);
+			        	Page p = dbfile.readPage(pid);
+			        	install(pid, p, scan);
+			        	return p;
+			        }
+		    	}
+	        }
+	        if (victim != null) {
+	        	// write the page to steal without holding the pool, and try
+	        	// again
+	        	try {
+	        		writeOut(victim, Long.MAX_VALUE);
+	        	} catch (IOException e) {
+	        		throw new DbException("could not evict a page: " + e.getMessage());
+	        	}
+	        	continue;
+	        }
+	        try {
+	        	// if the prefetcher has not got to this page yet, read it here
+	        	pending.run();
+	        	pending.get();
+	        } catch (InterruptedException e) {
+	        	Thread.currentThread().interrupt();
+	        	throw new TransactionAbortedException();
+	        } catch (ExecutionException e) {
+	        	// the page was not read ahead; read it here
+	        } catch (CancellationException e) {
+	        	// a caller holding the pool read the page instead
+	        }
+        }
+    }
+
+    /**
+     * Adds a page to the pool: to the ring of scan if it has one, and as the
+     * most recently used page otherwise.
+     */
+    private synchronized void install(PageId pid, Page p, SequentialScan scan) {
+    	if (scan != null && scan.ring != null) {
+    		orderOfPages.add(0, pid);
+    		scan.ring.add(pid);
+    		ringPages.put(pid, scan);
     	} else {
-	        int tableid = pid.getTableId();
-	        DbFile dbfile = Database.getCatalog().getDbFile(tableid);
-	        Page p = dbfile.readPage(pid);
-			orderOfPages.add(pid);
-	    	return pages.put(pid, p);
+    		orderOfPages.add(pid);
+    	}
+    	pages.put(pid, p);
+    }
+
+    /**
+     * Makes room for the next page of scan by evicting the oldest clean page
+     * of its ring, if the ring is full. Dirty pages are taken out of the
+     * ring instead, since they cannot be evicted before their transaction
+     * commits.
+     *
+     * @param tid if not null, pages locked by transactions other than tid
+     *            are not evicted
+     * @return true if a page was evicted
+     */
+    private synchronized boolean recycle(SequentialScan scan, TransactionId tid) {
+    	if (scan == null || scan.ring == null || scan.ring.size() < scan.ringSize) {
+    		return false;
+    	}
+    	for (PageId pid : new ArrayList<PageId>(scan.ring)) {
+    		if (pages.get(pid).isDirty() != null) {
+    			leaveRing(pid);
+    		} else if (tid == null || !lockMan.lockedByOthers(tid, pid)) {
+    			remove(orderOfPages.indexOf(pid));
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    /**
+     * Takes a page out of the ring it is in, if any.
+     */
+    private synchronized void leaveRing(PageId pid) {
+    	SequentialScan owner = ringPages.remove(pid);
+    	if (owner != null) {
+    		owner.ring.remove(pid);
+    	}
+    }
+
+    /**
+     * Removes the page at the specified position of orderOfPages from the
+     * pool.
+     */
+    private synchronized void remove(int i) {
+    	PageId pid = orderOfPages.remove(i);
+    	pages.remove(pid);
+    	leaveRing(pid);
+    	versions.evicted(pid);
+    }
+
+    /**
+     * Notes that tid fetched the specified page.
+     *
+     * @return the scan of the table of the page by tid, if tid has been
+     *         reading the pages of the table one after the other; null
+     *         otherwise
+     */
+    private synchronized SequentialScan fetched(TransactionId tid, PageId pid) {
+    	Map<Integer, SequentialScan> tidScans = scans.get(tid);
+    	if (tidScans == null) {
+    		tidScans = new HashMap<Integer, SequentialScan>();
+    		scans.put(tid, tidScans);
+    	}
+    	SequentialScan scan = tidScans.get(pid.getTableId());
+    	if (scan == null) {
+    		scan = new SequentialScan();
+    		tidScans.put(pid.getTableId(), scan);
+    	}
+    	if (!scan.fetched(pid.pageNumber())) {
+    		return null;
+    	}
+    	DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+    	if (!(file instanceof HeapFile)) {
+    		return null;
+    	}
+    	if (scan.ring == null && numPages >= 4 && ((HeapFile) file).numPages() > numPages / 4) {
+    		scan.ring = new LinkedList<PageId>();
+    		scan.ringSize = Math.min(RING_PAGES, numPages / 4);
+    	}
+    	return scan;
+    }
+
+    /**
+     * Starts reading the next PREFETCH_PAGES pages of the HeapFile tid is
+     * scanning that are not in the pool yet -- but never more than a
+     * quarter of the pool.
+     */
+    private synchronized void readAhead(TransactionId tid, PageId pid, SequentialScan scan) {
+    	DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+    	int last = Math.min(pid.pageNumber() + Math.min(PREFETCH_PAGES, numPages / 4),
+    			((HeapFile) file).numPages() - 1);
+    	for (int pgNo = Math.max(pid.pageNumber() + 1, scan.readAheadTo); pgNo <= last; pgNo++) {
+    		PageId next = new HeapPageId(pid.getTableId(), pgNo);
+    		if (!pages.containsKey(next) && !pendingReads.containsKey(next)) {
+    			PageReader reader = new PageReader(tid, file, next, scan);
+    			FutureTask<Page> read = new FutureTask<Page>(reader);
+    			reader.task = read;
+    			pendingReads.put(next, read);
+    			prefetcher.execute(read);
+    		}
+    	}
+    	scan.readAheadTo = Math.max(scan.readAheadTo, last + 1);
+    }
+
+    /**
+     * Reads a page ahead of a scan and adds it to the pool, unless that
+     * would mean evicting a dirty page or a page another transaction holds
+     * a lock on.
+     */
+    private class PageReader implements java.util.concurrent.Callable<Page> {
+    	private TransactionId tid;
+    	private DbFile file;
+    	private PageId pid;
+    	private SequentialScan scan;
+    	/** The read of this reader in pendingReads */
+    	private FutureTask<Page> task;
+
+    	PageReader(TransactionId tid, DbFile file, PageId pid, SequentialScan scan) {
+    		this.tid = tid;
+    		this.file = file;
+    		this.pid = pid;
+    		this.scan = scan;
+    	}
+
+    	public Page call() {
+    		Page p = null;
+    		try {
+    			p = file.readPage(pid);
+    		} finally {
+    			synchronized (BufferPool.this) {
+    				// a read cancelled by fetchPage may be older than the
+    				// page in the pool, or than a page evicted since
+    				boolean current = pendingReads.get(pid) == task;
+    				if (current) {
+    					pendingReads.remove(pid);
+    				}
+    				if (current && p != null && !pages.containsKey(pid)
+    						&& (recycle(scan, tid) || makeRoom(tid, scan.ring != null))) {
+    					install(pid, p, scan);
+    				}
+    			}
+    		}
+    		return p;
+    	}
+    }
+
+    /**
+     * Makes room for a page read ahead for tid, evicting the least recently
+     * used page that is clean and not locked by another transaction.
+     * @param ringOnly only evict pages of rings, so that a scan of a large
+     *            table never reads ahead at the expense of other pages
+     * @return false if there is no such page
+     */
+    private synchronized boolean makeRoom(TransactionId tid, boolean ringOnly) {
+    	if (orderOfPages.size() < numPages) {
+    		return true;
+    	}
+    	for (int i = 0; i < orderOfPages.size(); i++) {
+    		PageId pid = orderOfPages.get(i);
+    		if (pages.get(pid).isDirty() == null && !lockMan.lockedByOthers(tid, pid)
+    				&& (!ringOnly || ringPages.containsKey(pid))) {
+    			remove(i);
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    /**
+     * The pages of one table a transaction has fetched, as far as needed to
+     * tell whether it is scanning the table, and the ring of pages of the
+     * scan if the table is large.
+     */
+    private static class SequentialScan {
+    	/** The page fetched last */
+    	int lastPage = -1;
+    	/** How many consecutive pages were fetched up to lastPage */
+    	int run;
+    	/** The first page that was not read ahead yet */
+    	int readAheadTo;
+    	/** The pages of the ring in the pool, oldest first; null if none */
+    	LinkedList<PageId> ring;
+    	/** How many pages the ring holds */
+    	int ringSize;
+
+    	/**
+    	 * Notes that the specified page was fetched.
+    	 * @return true if the scan is sequential
+    	 */
+    	boolean fetched(int pgNo) {
+    		if (pgNo == lastPage + 1) {
+    			run++;
+    		} else if (pgNo != lastPage) {
+    			run = 1;
+    			readAheadTo = 0;
+    		}
+    		lastPage = pgNo;
+    		return run >= SEQUENTIAL_RUN;
     	}
     }
 
@@ -119,14 +594,86 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        // the changed HeapPages become the committed state, or are put
+        // back, while the locks keep other writers off them
+        Set<PageId> written = versions.written(tid);
+        if (commit) {
+        	flushPages(written);
+        	synchronized (this) {
+        		versions.commit(tid, pagesIn(written));
+        	}
+        } else {
+        	revertPages(tid, written);
+        	synchronized (this) {
+        		versions.abort(tid, pagesIn(written));
+        	}
+        }
+        versions.endSnapshot(tid);
         Set<PageId> pids = lockMan.releaseAllLocks(tid);
+        synchronized (this) {
+        	Map<Integer, SequentialScan> tidScans = scans.remove(tid);
+        	if (tidScans != null) {
+        		// the pages of the rings stay where they are, first to go
+        		for (SequentialScan scan : tidScans.values()) {
+        			if (scan.ring != null) {
+        				for (PageId pid : scan.ring) {
+        					ringPages.remove(pid);
+        				}
+        				scan.ring = null;
+        			}
+        		}
+        	}
+        }
 		if (commit) {
 			flushPages(pids);
+			synchronized (this) {
+				for (PageId pid : pids) {
+					Page p = pages.get(pid);
+					if (p != null && !written.contains(pid)) {
+						p.setBeforeImage();
+					}
+				}
+			}
 		} else {
-			revertPages(pids);
+			revertPages(tid, pids);
 		}  		
     }
 
+    /**
+     * @return the pages of the pool among the specified ones
+     */
+    private synchronized List<Page> pagesIn(Set<PageId> pids) {
+    	List<Page> ps = new ArrayList<Page>();
+    	for (PageId pid : pids) {
+    		Page p = pages.get(pid);
+    		if (p != null) {
+    			ps.add(p);
+    		}
+    	}
+    	return ps;
+    }
+
+    /**
+     * Makes tid a read-only transaction that reads a snapshot of the
+     * committed state of the database: it sees the changes of the
+     * transactions that committed before it started, and reads the
+     * HeapPages without locking them, so it neither waits for writers nor
+     * makes them wait. It cannot fetch pages READ_WRITE. The snapshot ends
+     * when tid completes.
+     */
+    public void beginSnapshot(TransactionId tid) {
+    	versions.beginSnapshot(tid);
+    }
+
+    /**
+     * Returns whether tid reads a snapshot, as set up by beginSnapshot.
+     * Only its HeapPages come from the snapshot: the pages of indexes are
+     * read as they are now, under locks, so plans for it must not use them.
+     */
+    public boolean readsSnapshot(TransactionId tid) {
+    	return versions.snapshotOf(tid) != null;
+    }
+
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to(Lock 
@@ -144,20 +691,51 @@ public class BufferPool {
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         DbFile table = Database.getCatalog().getDbFile(tableId);
-        ArrayList<Page> ps = table.insertTuple(tid, t);
+        startChange(tid);
+        try {
+        	dirtied(tid, table.insertTuple(tid, t));
+        	if (table instanceof HeapFile) {
+        		logged(Database.getLogFile().logInsert(tid, t), t.getRecordId().getPageId());
+        	}
+        } finally {
+        	endChange(tid);
+        }
+        // keep the indexes of the table in sync, now that t has a RecordId
+        for (IndexFile index : Database.getCatalog().getIndexes(tableId)) {
+        	dirtied(tid, index.insertTuple(tid, t));
+        }
+    }
+
+    /**
+     * Marks pages modified by tid as dirty, and caches them so that future
+     * requests see them, even if they were evicted while still clean.
+     * DbFiles should mark the pages they modify dirty themselves before
+     * fetching other pages, so that this cannot happen. A page cached again
+     * takes the place of an evicted one, as in getPage.
+     */
+    private synchronized void dirtied(TransactionId tid, List<Page> ps)
+        throws DbException {
         for (Page p: ps) {
+        	if (p instanceof HeapPage) {
+        		versions.changed(tid, (HeapPage) p);
+        	}
         	p.markDirty(true, tid);
         	PageId pageId = p.getId();
-        	if (this.pages.containsKey(pageId)) {
-        		this.pages.put(pageId, p);
+        	if (!this.pages.containsKey(pageId)) {
+        		if (orderOfPages.size() >= numPages) {
+        			evictHere();
+        		}
+        		orderOfPages.add(pageId);
         	}
+        	this.pages.put(pageId, p);
         }
     }
 
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from. May block if
-     * the lock cannot be acquired.
+     * Will acquire a write lock on the tuple, or on the page the tuple is
+     * removed from (see getPage(TransactionId, RecordId, Permissions)). May
+     * block if the lock cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit.  Does not need to update cached versions of any pages that have 
@@ -171,11 +749,231 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
     	int tableid = t.getRecordId().getPageId().getTableId();
         HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableid);
-        Page p = table.deleteTuple(tid, t);
-    	p.markDirty(true, tid);
-    	PageId pageId = p.getId();
-    	if (this.pages.containsKey(pageId)) {
-    		this.pages.put(pageId, p);
+        RecordId rid = t.getRecordId();
+        // lock first: the change itself is made in the pool, as other
+        // transactions may be changing other rows of the page
+        getPage(tid, rid, Permissions.READ_WRITE);
+        synchronized (this) {
+        	startChange(tid);
+        	try {
+        		dirtied(tid, Collections.singletonList(table.deleteTuple(tid, t)));
+        		versions.changed(tid, rid);
+        		logged(Database.getLogFile().logDelete(tid, t), rid.getPageId());
+        	} catch (IOException e) {
+        		throw new DbException("could not log the delete of " + rid + ": " + e.getMessage());
+        	} finally {
+        		endChange(tid);
+        	}
+        }
+        for (IndexFile index : Database.getCatalog().getIndexes(tableid)) {
+        	dirtied(tid, Collections.singletonList(index.deleteTuple(tid, t)));
+        }
+    }
+
+    /**
+     * Replace the values of a tuple in place, keeping its RecordId. Will
+     * acquire a write lock on the tuple or its page, and on the index pages
+     * of the indexes whose key changes. May block if the locks cannot be
+     * acquired.
+     *
+     * @param tid the transaction updating the tuple.
+     * @param t the tuple to update
+     * @param replacement the new values; takes over the RecordId of t
+     * @throws DbException if the new values do not fit on the page of t
+     */
+    public void updateTuple(TransactionId tid, Tuple t, Tuple replacement)
+        throws DbException, IOException, TransactionAbortedException {
+    	int tableid = t.getRecordId().getPageId().getTableId();
+        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableid);
+        RecordId rid = t.getRecordId();
+        getPage(tid, rid, Permissions.READ_WRITE);
+        synchronized (this) {
+        	startChange(tid);
+        	try {
+        		dirtied(tid, Collections.singletonList(table.updateTuple(tid, t, replacement)));
+        		versions.changed(tid, rid);
+        		logged(Database.getLogFile().logUpdate(tid, t, replacement), rid.getPageId());
+        	} finally {
+        		endChange(tid);
+        	}
+        }
+        for (IndexFile index : Database.getCatalog().getIndexes(tableid)) {
+        	int key = index.getKeyField();
+        	if (!t.getField(key).equals(replacement.getField(key))) {
+        		dirtied(tid, Collections.singletonList(index.deleteTuple(tid, t)));
+        		dirtied(tid, index.insertTuple(tid, replacement));
+        	}
+        }
+    }
+
+    /**
+     * Notes that the change of a HeapPage was logged at the specified LSN.
+     *
+     * @param lsn the LSN of the log record, or -1 if it was not logged
+     */
+    private synchronized void logged(long lsn, PageId pid) {
+    	Page p = pages.get(pid);
+    	if (lsn >= 0 && p instanceof HeapPage) {
+    		((HeapPage) p).setLsn(lsn);
+    		if (!recLsns.containsKey(pid)) {
+    			recLsns.put(pid, lsn);
+    		}
+    		if (cleaner == null) {
+    			cleaner = new Thread("BufferPool cleaner") {
+    				public void run() {
+    					clean();
+    				}
+    			};
+    			cleaner.setDaemon(true);
+    			cleaner.start();
+    		}
+    	}
+    }
+
+    /**
+     * Notes that tid is about to change a HeapPage, so that the page is not
+     * written before the change is logged.
+     */
+    private synchronized void startChange(TransactionId tid) {
+    	changing.put(tid, Database.getLogFile().getCurrentOffset());
+    }
+
+    private synchronized void endChange(TransactionId tid) {
+    	changing.remove(tid);
+    }
+
+    /**
+     * Returns the dirty page table, for a checkpoint.
+     *
+     * @param redoFrom set to where redo must start for the changes that are
+     *            being made right now, which are not in the table yet
+     */
+    synchronized Map<PageId, Long> getDirtyPages(long[] redoFrom) {
+    	redoFrom[0] = Database.getLogFile().getCurrentOffset();
+    	for (long lsn : changing.values()) {
+    		redoFrom[0] = Math.min(redoFrom[0], lsn);
+    	}
+    	return new HashMap<PageId, Long>(recLsns);
+    }
+
+    /**
+     * The cleaner: every CLEANER_INTERVAL_MILLIS, or when eviction finds no
+     * clean page, writes up to CLEANER_PAGES dirty pages (see pagesToClean)
+     * after forcing the log, in page number order, without holding the pool
+     * while it writes them.
+     */
+    private void clean() {
+    	while (true) {
+    		try {
+    			Thread.sleep(CLEANER_INTERVAL_MILLIS);
+    		} catch (InterruptedException e) {
+    			// write the pages now
+    		}
+    		List<PageId> pids;
+    		synchronized (this) {
+    			if (recLsns.isEmpty()) {
+    				cleaner = null;
+    				return;
+    			}
+    			pids = pagesToClean(CLEANER_PAGES);
+    		}
+    		try {
+    			// outside the pool, so that fetches do not wait for the disk
+    			LogFile log = Database.getLogFile();
+    			long forced = log.getCurrentOffset();
+    			log.force();
+    			// pages changed again since are left for next time
+    			for (PageId pid : pids) {
+    				writeOut(pid, forced);
+    			}
+    		} catch (IOException e) {
+    			// the pages stay dirty; they are written on commit
+    			Debug.log("CLEANER COULD NOT WRITE PAGES: " + e.getMessage());
+    		}
+    	}
+    }
+
+    /**
+     * @return true if the specified dirty page may be written before its
+     *         transaction completes: the transaction is logged, and it is
+     *         not in the middle of a change that is not logged yet
+     */
+    private synchronized boolean stealable(Page p) {
+    	TransactionId dirtier = p.isDirty();
+    	return dirtier != null && Database.getLogFile().isLogged(dirtier)
+    			&& !changing.containsKey(dirtier);
+    }
+
+    /**
+     * @return up to max dirty HeapPages that can be written, in page number
+     *         order: in STEAL mode the least recently used ones first, then
+     *         those with the oldest first changes
+     */
+    private synchronized List<PageId> pagesToClean(int max) {
+    	List<PageId> pids = new ArrayList<PageId>();
+    	if (steal) {
+    		for (int i = 0; i < orderOfPages.size() / 2 && pids.size() < max; i++) {
+    			PageId pid = orderOfPages.get(i);
+    			if (recLsns.containsKey(pid) && stealable(pages.get(pid))) {
+    				pids.add(pid);
+    			}
+    		}
+    	}
+    	List<Map.Entry<PageId, Long>> entries = new ArrayList<Map.Entry<PageId, Long>>();
+    	for (Iterator<Map.Entry<PageId, Long>> it = recLsns.entrySet().iterator(); it.hasNext(); ) {
+    		Map.Entry<PageId, Long> e = it.next();
+    		Page p = pages.get(e.getKey());
+    		if (p == null || p.isDirty() == null) {
+    			// written behind the back of the pool (by a rollback)
+    			it.remove();
+    		} else if (stealable(p) && !pids.contains(e.getKey())) {
+    			entries.add(e);
+    		}
+    	}
+    	Collections.sort(entries, new Comparator<Map.Entry<PageId, Long>>() {
+    		public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+    			return a.getValue().compareTo(b.getValue());
+    		}
+    	});
+    	for (int i = 0; i < entries.size() && pids.size() < max; i++) {
+    		pids.add(entries.get(i).getKey());
+    	}
+    	Collections.sort(pids, PAGE_ORDER);
+    	return pids;
+    }
+
+    /** Orders pages by table, and by page number within a table. */
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+    	public int compare(PageId a, PageId b) {
+    		if (a.getTableId() != b.getTableId()) {
+    			return a.getTableId() < b.getTableId() ? -1 : 1;
+    		}
+    		return a.pageNumber() < b.pageNumber() ? -1 : a.pageNumber() > b.pageNumber() ? 1 : 0;
+    	}
+    };
+
+    /**
+     * Makes sure that the log describes the specified pages before they are
+     * written: the changes of HeapPages are logged as they are made, other
+     * pages dirtied by logged transactions are logged as a whole here, and
+     * the log is forced once for all of them. Pages of transactions that
+     * are not logged are written as they are.
+     */
+    private synchronized void writeAhead(Collection<PageId> pids) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	boolean logged = false;
+    	for (PageId pid : pids) {
+    		Page p = pages.get(pid);
+    		if (p == null || !log.isLogged(p.isDirty())) {
+    			continue;
+    		}
+    		logged = true;
+    		if (!(p instanceof HeapPage)) {
+    			log.logWrite(p.isDirty(), p.getBeforeImage(), p);
+    		}
+    	}
+    	if (logged) {
+    		log.force();
     	}
     }
 
@@ -194,9 +992,7 @@ public class BufferPool {
          * 
          * 
          */
-    	for (PageId pid: orderOfPages) {
-    		flushPage(pid);
-    	}
+    	writePages(orderOfPages);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -207,6 +1003,11 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // only necessary for lab5
+    	int i = orderOfPages.indexOf(pid);
+    	if (i >= 0) {
+    		remove(i);
+    	}
+    	recLsns.remove(pid);
     }
 
     /**
@@ -223,29 +1024,60 @@ public class BufferPool {
          * 
          * 
          */
+    	Page p = pages.get(pid);
+    	if (p == null || p.isDirty() == null) {
+    		return;
+    	}
     	int tableid = pid.getTableId();
     	DbFile tableFile = Database.getCatalog().getDbFile(tableid);
-    	Page p = pages.remove(pid);
-    	p.markDirty(false, null);
     	tableFile.writePage(p);
+    	p.markDirty(false, null);
+    	recLsns.remove(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
+    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    	List<PageId> pids = new ArrayList<PageId>();
+    	for (PageId pid: orderOfPages) {
+    		if (pages.get(pid).isDirty() != null && tid.equals(pages.get(pid).isDirty())) {
+    			pids.add(pid);
+    		}
+    	}
+    	writePages(pids);
+    }
+
+    /** Write the specified pages to disk, if they are dirty, after the log
+        records describing them.
+     */
+    private synchronized void writePages(Collection<PageId> pids) throws IOException {
+    	awaitWrites(pids);
+    	writeAhead(pids);
+    	List<PageId> sorted = new ArrayList<PageId>(pids);
+    	Collections.sort(sorted, PAGE_ORDER);
+    	for (PageId pid: sorted) {
+    		flushPage(pid);
+    	}
+    }
+
+    /** Write the specified pages to disk, if they are dirty.
+     */
     public synchronized  void flushPages(Set<PageId> pids) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	for (PageId pid: pids) {
-    		flushPage(pid);
-    	}
+    	writePages(pids);
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * In STEAL mode, when every page is dirty, the page to steal is
+     * returned instead, for the caller to write (see writeOut and
+     * evictHere) before trying again.
+     * @return the page to write, or null if a page was evicted or none can be
      * @throws IOException 
      */
-    private synchronized  void evictPage() throws DbException, IOException {
+    private synchronized PageId evictPage() throws DbException, IOException {
         /**
          * 
          * 
@@ -259,24 +1091,135 @@ public class BufferPool {
     		PageId pid = orderOfPages.get(i);
     		Page p = pages.get(pid);
     		if (p.isDirty() == null) {
-    			orderOfPages.remove(i);
-    	    	flushPage(pid);
-    	    	return;
+    			remove(i);
+    	    	return null;
+    		}
+    	}
+    	if (!steal) {
+    		return null;
+    	}
+    	// the cleaner is behind; steal a page here, and wake it up
+    	if (cleaner != null) {
+    		cleaner.interrupt();
+    	}
+    	for (int i = 0; i < orderOfPages.size(); i++) {
+    		PageId pid = orderOfPages.get(i);
+    		if (stealable(pages.get(pid)) && !writing.contains(pid)) {
+    			return pid;
+    		}
+    	}
+    	return null;
+    }
+
+    /**
+     * Evicts a page, writing the page to steal, if any, with the pool held;
+     * for callers that hold the pool anyway.
+     */
+    private synchronized void evictHere() throws DbException {
+    	try {
+    		PageId victim = evictPage();
+    		if (victim != null) {
+    			writePages(Collections.singletonList(victim));
+    			remove(orderOfPages.indexOf(victim));
+    		}
+    	} catch (IOException e) {
+    		throw new DbException("could not evict a page: " + e.getMessage());
+    	}
+    }
+
+    /**
+     * Writes a dirty page whose transaction is logged, without holding the
+     * pool while the log is forced and the page is written: a copy of the
+     * page is written, and the page is marked clean afterwards unless it
+     * changed in the meantime. No other write of the page starts until
+     * this one is over (see awaitWrites). Pages other than HeapPages are
+     * logged as a whole, so they are written with the pool held.
+     *
+     * @param maxLsn the page is only written if its last change was
+     *            logged before this LSN
+     */
+    private void writeOut(PageId pid, long maxLsn) throws IOException {
+    	HeapPage copy;
+    	byte[] data;
+    	synchronized (this) {
+    		Page p = pages.get(pid);
+    		if (p == null || !stealable(p) || writing.contains(pid)) {
+    			return;
+    		}
+    		if (!(p instanceof HeapPage)) {
+    			writePages(Collections.singletonList(pid));
+    			return;
+    		}
+    		if (((HeapPage) p).getLsn() >= maxLsn) {
+    			return;
+    		}
+    		data = p.getPageData();
+    		copy = ((HeapPage) p).copyOf(data);
+    		writing.add(pid);
+    	}
+    	boolean written = false;
+    	try {
+    		if (copy.getLsn() >= 0) {
+    			Database.getLogFile().flushTo(copy.getLsn() + 1, true);
+    		}
+    		Database.getCatalog().getDbFile(pid.getTableId()).writePage(copy);
+    		written = true;
+    	} finally {
+    		synchronized (this) {
+    			writing.remove(pid);
+    			notifyAll();
+    			Page p = pages.get(pid);
+    			if (written && p != null && p.isDirty() != null
+    					&& Arrays.equals(p.getPageData(), data)) {
+    				p.markDirty(false, null);
+    				recLsns.remove(pid);
+    			}
     		}
     	}
     }
+
+    /**
+     * Waits until none of the specified pages is being written by writeOut,
+     * so that a later write of a page cannot be overtaken by an earlier one.
+     * Callers that write pages themselves must call it with the pool held,
+     * but not the LogFile, which a thread waiting for the pool may hold.
+     *
+     * @param pids the pages, or null for every page
+     */
+    synchronized void awaitWrites(Collection<PageId> pids) {
+    	boolean interrupted = false;
+    	while (pids == null ? !writing.isEmpty() : !Collections.disjoint(writing, pids)) {
+    		try {
+    			wait();
+    		} catch (InterruptedException e) {
+    			interrupted = true;
+    		}
+    	}
+    	if (interrupted) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
     
-    private synchronized void revertPage(PageId pid) {
+    private synchronized void revertPage(TransactionId tid, PageId pid) {
     	int tableid = pid.getTableId();
     	DbFile tableFile = Database.getCatalog().getDbFile(tableid);
     	Page p = pages.get(pid);
+    	// a page that is not dirty with the changes of tid is left alone:
+    	// the rollback of a logged transaction puts its pages back and
+    	// writes them, and other transactions may have changed other rows
+    	// of them since
+    	if (p == null || p.isDirty() == null || !tid.equals(p.isDirty())) {
+    		return;
+    	}
+    	recLsns.remove(pid);
     	p.markDirty(false, null);
     	pages.put(pid, tableFile.readPage(pid));
     }
     
-    private synchronized void revertPages(Set<PageId> pids) {
+    private synchronized void revertPages(TransactionId tid, Set<PageId> pids) {
+    	awaitWrites(pids);
     	for (PageId pid: pids) {
-    		revertPage(pid);
+    		revertPage(tid, pid);
     	}
     }
 }
@@ -3,7 +3,9 @@ package simpledb;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
 
 /**
@@ -18,6 +20,10 @@ public class Catalog {
 
 	HashMap<String, DbFileAdapter> tableNames;
 	HashMap<Integer, DbFileAdapter> tableIDs;
+	HashMap<Integer, IndexFile> indexIDs;
+	HashMap<Integer, ArrayList<IndexFile>> tableIndexes;
+	/** The dictionaries opened by loadSchema, by path, so tables can share them */
+	HashMap<String, Dictionary> dictionaries;
 	
     /**
      * Constructor.
@@ -26,6 +32,9 @@ public class Catalog {
     public Catalog() {
         tableNames = new HashMap<String, DbFileAdapter>();
         tableIDs = new HashMap<Integer, DbFileAdapter>();
+        indexIDs = new HashMap<Integer, IndexFile>();
+        tableIndexes = new HashMap<Integer, ArrayList<IndexFile>>();
+        dictionaries = new HashMap<String, Dictionary>();
     }
 
     /**
@@ -79,19 +88,25 @@ public class Catalog {
         if (tableIDs.containsKey(tableid)) {
         	return tableIDs.get(tableid).getFile().getTupleDesc();
         }
+        if (indexIDs.containsKey(tableid)) {
+        	return indexIDs.get(tableid).getTupleDesc();
+        }
         throw new NoSuchElementException("Table of id " + tableid + " does not exist");
     }
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
+     * specified table or index.
      * @param tableid The id of the table, as specified by the DbFile.getId()
-     *     function passed to addTable
+     *     function passed to addTable or addIndex
      */
     public DbFile getDbFile(int tableid) throws NoSuchElementException {
         if (tableIDs.containsKey(tableid)) {
         	return tableIDs.get(tableid).getFile();
         }
+        if (indexIDs.containsKey(tableid)) {
+        	return indexIDs.get(tableid);
+        }
         throw new NoSuchElementException("Table of id " + tableid + " does not exist");
     }
 
@@ -107,14 +122,79 @@ public class Catalog {
         return tableIDs.get(id).getTableName();
     }
     
+    /**
+     * Add a new index to the catalog. The index is registered under its own
+     * id (index.getId()), so that its pages can be fetched through the
+     * BufferPool, and is kept up to date by BufferPool.insertTuple and
+     * BufferPool.deleteTuple from then on. The base table must already be
+     * in the catalog.
+     * @param index the index to add
+     */
+    public void addIndex(IndexFile index) {
+        indexIDs.put(index.getId(), index);
+        ArrayList<IndexFile> indexes = tableIndexes.get(index.getTableId());
+        if (indexes == null) {
+            indexes = new ArrayList<IndexFile>();
+            tableIndexes.put(index.getTableId(), indexes);
+        }
+        indexes.add(index);
+    }
+
+    /**
+     * @return the indexes over the specified table; empty if there are none
+     */
+    public List<IndexFile> getIndexes(int tableid) {
+        ArrayList<IndexFile> indexes = tableIndexes.get(tableid);
+        if (indexes == null) {
+            return Collections.emptyList();
+        }
+        return indexes;
+    }
+
+    /**
+     * @return an index over the specified field of the specified table that
+     *   supports op, or null if there is none
+     */
+    public IndexFile getIndex(int tableid, int field, Predicate.Op op) {
+        for (IndexFile index : getIndexes(tableid)) {
+            if (index.getKeyField() == field && index.supports(op)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         tableNames.clear();
         tableIDs.clear();
+        indexIDs.clear();
+        tableIndexes.clear();
+        dictionaries.clear();
       }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A table whose line ends with the option <tt>slotted</tt> stores its
+     * tuples as variable-length records in SlottedHeapPages; one with the
+     * option <tt>compressed</tt> stores its pages compressed, with an offset
+     * index in <tt>table.dat.off</tt>.
+     * <p>
+     * A table with the option <tt>pagesize=N</tt> is stored in pages of N
+     * bytes; other tables keep the page size they were written with, and
+     * new ones get the database page size (BufferPool#getPageSize). The
+     * indexes of a table use its page size.
+     * <p>
+     * A string field annotated with <tt>dict</tt> is stored as codes of a
+     * Dictionary of its own, kept in <tt>table.field.dict</tt>; one
+     * annotated with <tt>dict:name</tt> uses the Dictionary in
+     * <tt>name.dict</tt>, which other fields can share, so that joins
+     * between them compare codes.
+     * <p>
+     * The page format, page size and dictionaries a table was written with
+     * are recorded in <tt>table.dat.layout</tt>; when they, or whether the
+     * table is compressed, differ from the declaration, the table is
+     * rewritten and its indexes are rebuilt.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -128,12 +208,17 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
+                String options = line.substring(line.indexOf(")") + 1).trim();
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<String> indexedFields = new ArrayList<String>();
+                ArrayList<String> hashedFields = new ArrayList<String>();
+                ArrayList<String> dictNames = new ArrayList<String>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
+                    dictNames.add(null);
                     if (els2[1].trim().toLowerCase().equals("int"))
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
@@ -142,11 +227,19 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("index"))
+                            indexedFields.add(els2[0].trim());
+                        else if (els2[i].trim().equals("hash"))
+                            hashedFields.add(els2[0].trim());
+                        else if (els2[i].trim().equals("dict"))
+                            dictNames.set(names.size() - 1, name + "." + els2[0].trim() + ".dict");
+                        else if (els2[i].trim().startsWith("dict:"))
+                            dictNames.set(names.size() - 1, els2[i].trim().substring(5) + ".dict");
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -154,9 +247,80 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                boolean slotted = false;
+                boolean compressed = false;
+                int pageSize = -1;
+                for (String option : options.split(" ")) {
+                    if (option.trim().equals("slotted"))
+                        slotted = true;
+                    else if (option.trim().equals("compressed"))
+                        compressed = true;
+                    else if (option.trim().startsWith("pagesize="))
+                        pageSize = Integer.parseInt(option.trim().substring(9));
+                    else if (!option.trim().equals("")) {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
+                Dictionary[] dicts = new Dictionary[t.numFields()];
+                for (int i = 0; i < dicts.length; i++) {
+                    if (dictNames.get(i) == null)
+                        continue;
+                    if (t.getFieldType(i) != Type.STRING_TYPE) {
+                        System.out.println("Only string fields can be dictionary encoded: " + names.get(i));
+                        System.exit(0);
+                    }
+                    dicts[i] = openDictionary(new File(baseFolder, dictNames.get(i)));
+                }
+                File datFile = new File(baseFolder+"/"+name + ".dat");
+                File layoutFile = new File(datFile.getPath() + ".layout");
+                TableLayout stored = readLayout(datFile, baseFolder, t.numFields());
+                if (pageSize < 0)
+                    pageSize = stored.pageSize;
+                if (stored.slotted == null)
+                    stored.slotted = slotted;
+                if (pageSize <= 0 || (slotted && pageSize > SlottedHeapPage.MAX_PAGE_SIZE)) {
+                    System.out.println("Invalid page size " + pageSize + " for table " + name);
+                    System.exit(0);
+                }
+                boolean storedCompressed = CompressedPages.indexFile(datFile).exists();
+                boolean rewritten = false;
+                boolean changed = !Arrays.equals(stored.dictionaries, dicts) || stored.slotted != slotted
+                        || storedCompressed != compressed || stored.pageSize != pageSize;
+                if (changed || !layoutFile.exists()) {
+                    HeapFile old = new HeapFile(datFile, t, stored.slotted, stored.dictionaries,
+                            storedCompressed, stored.pageSize);
+                    if (changed && old.numPages() > 0) {
+                        old.rewriteAs(new HeapFile(datFile, t, slotted, dicts, compressed, pageSize));
+                        rewritten = true;
+                    }
+                    writeLayout(datFile, pageSize, slotted, dicts);
+                }
+                HeapFile tabHf = new HeapFile(datFile, t, slotted, dicts, compressed, pageSize);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (String field : indexedFields) {
+                    File idxFile = new File(baseFolder+"/"+name + "." + field + ".idx");
+                    if (rewritten)
+                        idxFile.delete();
+                    boolean build = !idxFile.exists();
+                    BTreeFile idx = new BTreeFile(idxFile, tabHf.getId(), t.fieldNameToIndex(field));
+                    addIndex(idx);
+                    if (build)
+                        populateIndex(idx);
+                    System.out.println("Added index on " + name + "." + field);
+                }
+                for (String field : hashedFields) {
+                    File idxFile = new File(baseFolder+"/"+name + "." + field + ".hash");
+                    if (rewritten)
+                        idxFile.delete();
+                    boolean build = !idxFile.exists();
+                    HashIndexFile idx = new HashIndexFile(idxFile, tabHf.getId(), t.fieldNameToIndex(field));
+                    addIndex(idx);
+                    if (build)
+                        populateIndex(idx);
+                    System.out.println("Added hash index on " + name + "." + field);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -164,7 +328,138 @@ public class Catalog {
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (NumberFormatException e) {
+            System.out.println ("Invalid catalog entry : " + line);
+            System.exit(0);
+        }
+    }
+
+    /**
+     * @return the Dictionary stored in the specified file, opened only once
+     *   however many fields use it
+     */
+    private Dictionary openDictionary(File f) throws IOException {
+        String path = f.getCanonicalPath();
+        Dictionary dict = dictionaries.get(path);
+        if (dict == null) {
+            dict = new Dictionary(f);
+            dictionaries.put(path, dict);
+        }
+        return dict;
+    }
+
+    /** The page format, page size and dictionaries a table was written with */
+    private static class TableLayout {
+        /** Whether the pages are SlottedHeapPages, or null if not recorded */
+        Boolean slotted;
+        int pageSize;
+        Dictionary[] dictionaries;
+    }
+
+    /**
+     * Reads the layout of a table from <tt>&lt;file&gt;.layout</tt>: a line
+     * <tt>pagesize N</tt>, a line <tt>slotted true|false</tt>, and a line
+     * per dictionary encoded field holding its index and the name of the
+     * dictionary file. A table without a layout file -- one written by
+     * HeapFileEncoder -- has no dictionary encoded fields, the database page
+     * size and the page format it is declared with. The dictionaries of a
+     * table whose layout was recorded in <tt>&lt;file&gt;.dict</tt> are read
+     * from there.
+     */
+    private TableLayout readLayout(File datFile, String baseFolder, int numFields)
+            throws IOException {
+        TableLayout layout = new TableLayout();
+        layout.pageSize = BufferPool.getPageSize();
+        layout.dictionaries = new Dictionary[numFields];
+        File layoutFile = new File(datFile.getPath() + ".layout");
+        if (!layoutFile.exists())
+            layoutFile = new File(datFile.getPath() + ".dict");
+        if (!layoutFile.exists())
+            return layout;
+        BufferedReader br = new BufferedReader(new FileReader(layoutFile));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] els = line.trim().split(" ");
+                if (els.length != 2)
+                    continue;
+                if (els[0].equals("pagesize")) {
+                    layout.pageSize = Integer.parseInt(els[1]);
+                    continue;
+                }
+                if (els[0].equals("slotted")) {
+                    layout.slotted = Boolean.valueOf(els[1]);
+                    continue;
+                }
+                int field = Integer.parseInt(els[0]);
+                if (field >= 0 && field < numFields)
+                    layout.dictionaries[field] = openDictionary(new File(baseFolder, els[1]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("corrupt table layout " + layoutFile);
+        } finally {
+            br.close();
+        }
+        return layout;
+    }
+
+    private void writeLayout(File datFile, int pageSize, boolean slotted, Dictionary[] dicts)
+            throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(datFile.getPath() + ".layout"));
+        try {
+            pw.println("pagesize " + pageSize);
+            pw.println("slotted " + slotted);
+            for (int i = 0; i < dicts.length; i++) {
+                if (dicts[i] != null)
+                    pw.println(i + " " + dicts[i].getFile().getName());
+            }
+        } finally {
+            pw.close();
+        }
+        new File(datFile.getPath() + ".dict").delete();
+    }
+
+    /**
+     * @return the number of bytes per page of the specified table or index,
+     *   or the database page size if it is not stored in a HeapFile
+     */
+    public int getPageSize(int tableid) {
+        DbFile f = getDbFile(tableid);
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).getPageSize();
+        if (f instanceof IndexFile)
+            return getPageSize(((IndexFile) f).getTableId());
+        return BufferPool.getPageSize();
+    }
+
+    /**
+     * Adds an entry to a newly created index for every tuple already stored
+     * in its base table. Dirty index pages are flushed as the build goes so
+     * that it does not run the buffer pool out of clean pages.
+     */
+    private void populateIndex(IndexFile index) throws IOException {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = getDbFile(index.getTableId()).iterator(tid);
+        Set<PageId> dirtied = new HashSet<PageId>();
+        try {
+            it.open();
+            while (it.hasNext()) {
+                for (Page p : index.insertTuple(tid, it.next())) {
+                    p.markDirty(true, tid);
+                    dirtied.add(p.getId());
+                }
+                if (dirtied.size() >= BufferPool.DEFAULT_PAGES / 2) {
+                    Database.getBufferPool().flushPages(dirtied);
+                    dirtied.clear();
+                }
+            }
+            it.close();
+        } catch (DbException e) {
+            throw new IOException("failed to build index over table " + index.getTableId(), e);
+        } catch (TransactionAbortedException e) {
+            throw new IOException("failed to build index over table " + index.getTableId(), e);
         }
+        Database.getBufferPool().transactionComplete(tid);
     }
     
     private class DbFileAdapter { 
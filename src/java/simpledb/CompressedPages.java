@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedPages stores the pages of a compressed HeapFile. Most of a heap
+ * page of a cold table is zero padding and repeated values, so each page is
+ * deflated on its own (java.util.zip, so pages can still be read one at a
+ * time) and the compressed images are stored one after the other in the
+ * heap file.
+ * <p>
+ * Since compressed pages differ in size, the position of each page is kept
+ * in an offset index next to the heap file (<tt>&lt;file&gt;.off</tt>): a
+ * record of an eight byte offset and a four byte length per page. A page
+ * with length 0 is an all zero page and takes no space in the heap file,
+ * so appending an empty page only appends to the offset index.
+ * <p>
+ * A page that is written again overwrites its old image if it is no
+ * larger, and is appended to the heap file otherwise; its index record is
+ * written after the image. The space of the old image is only reclaimed
+ * when the table is rewritten (see HeapFile#rewriteAs).
+ *
+ * @see HeapFile#isCompressed
+ */
+public class CompressedPages {
+
+    /** Bytes used by the index record of a page. */
+    static final int ENTRY_SIZE = 8 + 4;
+
+    private File file;
+    private File index;
+    private int pageSize;
+    private long[] offsets;
+    private int[] lengths;
+    private int numPages;
+    /** Where the next page image that does not fit in place is appended */
+    private long end;
+
+    /**
+     * Opens the compressed pages stored in the specified heap file. A heap
+     * file without an offset index has no pages yet; the index is created
+     * when the first page is added.
+     *
+     * @param pageSize the size of the uncompressed pages
+     * @throws IOException if the offset index cannot be read or points
+     *             outside of the heap file
+     */
+    public CompressedPages(File f, int pageSize) throws IOException {
+        this.file = f;
+        this.pageSize = pageSize;
+        this.index = indexFile(f);
+        numPages = (int) (index.length() / ENTRY_SIZE);
+        offsets = new long[Math.max(16, numPages)];
+        lengths = new int[offsets.length];
+        if (numPages == 0)
+            return;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(index)));
+        try {
+            for (int i = 0; i < numPages; i++) {
+                offsets[i] = dis.readLong();
+                lengths[i] = dis.readInt();
+                if (lengths[i] < 0 || offsets[i] < 0 || offsets[i] + lengths[i] > f.length())
+                    throw new IOException("page " + i + " of " + f + " is out of bounds");
+                end = Math.max(end, offsets[i] + lengths[i]);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * @return the offset index of the specified heap file
+     */
+    public static File indexFile(File f) {
+        return new File(f.getPath() + ".off");
+    }
+
+    /**
+     * @return the number of pages stored
+     */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Reads and decompresses the specified page.
+     *
+     * @return the page image, of the size of the uncompressed pages
+     * @throws IOException if the page does not exist or is corrupt
+     */
+    public byte[] readPage(int pgNo) throws IOException {
+        long offset;
+        int length;
+        synchronized (this) {
+            if (pgNo < 0 || pgNo >= numPages)
+                throw new IOException("page " + pgNo + " is not in " + file);
+            offset = offsets[pgNo];
+            length = lengths[pgNo];
+        }
+        byte[] page = new byte[pageSize];
+        if (length == 0)
+            return page;
+        byte[] b = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(b);
+        } finally {
+            raf.close();
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(b);
+            int n = 0;
+            while (n < page.length && !inflater.finished()) {
+                int read = inflater.inflate(page, n, page.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += read;
+            }
+            if (n != page.length || !inflater.finished())
+                throw new IOException("page " + pgNo + " of " + file + " is corrupt");
+        } catch (DataFormatException e) {
+            throw new IOException("page " + pgNo + " of " + file + " is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return page;
+    }
+
+    /**
+     * Compresses the specified page image and writes it as the specified
+     * page, which is either a page that is already stored or the next one.
+     */
+    public synchronized void writePage(int pgNo, byte[] data) throws IOException {
+        if (pgNo < 0 || pgNo > numPages)
+            throw new IOException("cannot write page " + pgNo + " of " + file
+                    + " which has " + numPages + " pages");
+        byte[] b = compress(data);
+        long offset;
+        if (pgNo < numPages && b.length <= lengths[pgNo]) {
+            offset = offsets[pgNo];
+        } else {
+            offset = end;
+            end += b.length;
+        }
+        if (b.length > 0) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(offset);
+                raf.write(b);
+            } finally {
+                raf.close();
+            }
+        }
+        setEntry(pgNo, offset, b.length);
+    }
+
+    /**
+     * Appends an all zero page.
+     */
+    public synchronized void appendEmptyPage() throws IOException {
+        setEntry(numPages, end, 0);
+    }
+
+    private void setEntry(int pgNo, long offset, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(index, "rw");
+        try {
+            raf.seek((long) pgNo * ENTRY_SIZE);
+            raf.writeLong(offset);
+            raf.writeInt(length);
+        } finally {
+            raf.close();
+        }
+        if (pgNo == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+            lengths = Arrays.copyOf(lengths, 2 * lengths.length);
+        }
+        offsets[pgNo] = offset;
+        lengths[pgNo] = length;
+        if (pgNo == numPages)
+            numPages++;
+    }
+
+    /**
+     * @return the deflated page image, or an empty array for an all zero
+     *         page
+     */
+    static byte[] compress(byte[] data) {
+        boolean empty = true;
+        for (int i = 0; i < data.length && empty; i++)
+            empty = data[i] == 0;
+        if (empty)
+            return new byte[0];
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses a file of uncompressed pages into the specified heap file
+     * and its offset index, replacing them if they exist.
+     *
+     * @param in a file of uncompressed pages of the specified size
+     */
+    public static void compressFile(File in, File out, int pageSize) throws IOException {
+        File tmp = new File(out.getPath() + ".z.tmp");
+        File tmpIndex = indexFile(tmp);
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(in)));
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+        DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpIndex)));
+        try {
+            byte[] page = new byte[pageSize];
+            long offset = 0;
+            for (long i = 0; i < in.length() / pageSize; i++) {
+                dis.readFully(page);
+                byte[] b = compress(page);
+                os.write(b);
+                idx.writeLong(offset);
+                idx.writeInt(b.length);
+                offset += b.length;
+            }
+        } finally {
+            dis.close();
+            os.close();
+            idx.close();
+        }
+        replace(tmpIndex, indexFile(out));
+        replace(tmp, out);
+    }
+
+    private static void replace(File tmp, File f) throws IOException {
+        if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+            throw new IOException("could not replace " + f + " with " + tmp);
+        }
+    }
+}
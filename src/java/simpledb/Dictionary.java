@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Dictionary assigns int codes to the values of a dictionary encoded
+ * STRING_TYPE column, so that pages store a four byte code instead of the
+ * string. Columns of several tables may share a dictionary, which lets
+ * joins between them compare codes.
+ * <p>
+ * Codes are assigned in the order values are first seen and never change.
+ * The dictionary is stored in a file of its own, one value after the other
+ * (as written by DataOutputStream.writeUTF), so the code of a value is its
+ * position in the file. A new value is appended and forced to disk before
+ * its code is handed out, so no page that is written can refer to a code
+ * the dictionary does not have.
+ * <p>
+ * The dictionary keeps one EncodedStringField per code, so decoding a value
+ * does not allocate.
+ *
+ * @see EncodedStringField
+ * @see HeapFile#getDictionary
+ */
+public class Dictionary {
+
+    private File file;
+    private HashMap<String, Integer> codes;
+    /** The field of each code; replaced, never modified, when values are added */
+    private volatile EncodedStringField[] fields;
+    private int size;
+
+    /**
+     * Opens the dictionary stored in the specified file, creating an empty
+     * one if the file does not exist.
+     */
+    public Dictionary(File f) throws IOException {
+        this.file = f;
+        this.codes = new HashMap<String, Integer>();
+        this.fields = new EncodedStringField[16];
+        if (!file.exists())
+            return;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        long good = 0;
+        try {
+            while (good < file.length()) {
+                String value = dis.readUTF();
+                add(value);
+                good += 2 + utfLength(value);
+            }
+        } catch (EOFException e) {
+            // a value whose append was cut short by a crash; no page can
+            // refer to it, so drop it
+        } finally {
+            dis.close();
+        }
+        if (good < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(good);
+            raf.close();
+        }
+    }
+
+    private static int utfLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            len += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff ? 2 : 3);
+        }
+        return len;
+    }
+
+    /**
+     * Returns the File backing this Dictionary on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    private int add(String value) {
+        int code = size;
+        if (code == fields.length) {
+            fields = Arrays.copyOf(fields, 2 * fields.length);
+        }
+        EncodedStringField[] fs = fields;
+        fs[code] = new EncodedStringField(this, code, value);
+        fields = fs; // publish the new field
+        codes.put(value, code);
+        size++;
+        return code;
+    }
+
+    private static String truncate(String value) {
+        return value.length() > Type.STRING_LEN ? value.substring(0, Type.STRING_LEN) : value;
+    }
+
+    /**
+     * @return the number of values in this dictionary
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the code of the specified value, or -1 if it has none
+     */
+    public synchronized int lookup(String value) {
+        Integer code = codes.get(truncate(value));
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Returns the code of the value of the specified field, adding the value
+     * to the dictionary if it is new.
+     *
+     * @param f a StringField
+     * @throws IOException if a new value cannot be written to the file
+     */
+    public synchronized int encode(Field f) throws IOException {
+        if (f instanceof EncodedStringField && ((EncodedStringField) f).getDictionary() == this)
+            return ((EncodedStringField) f).getCode();
+        String value = truncate(((StringField) f).getValue());
+        Integer code = codes.get(value);
+        if (code != null)
+            return code;
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            DataOutputStream dos = new DataOutputStream(fos);
+            dos.writeUTF(value);
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        return add(value);
+    }
+
+    /**
+     * @return the field holding the value with the specified code
+     * @throws NoSuchElementException if the code is not in the dictionary
+     */
+    public EncodedStringField getField(int code) {
+        EncodedStringField[] fs = fields;
+        if (code < 0 || code >= fs.length || fs[code] == null)
+            throw new NoSuchElementException("code " + code + " is not in " + file);
+        return fs[code];
+    }
+}
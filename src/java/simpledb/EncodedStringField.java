@@ -0,0 +1,64 @@
+package simpledb;
+
+/**
+ * A StringField read from a dictionary encoded column. It behaves like any
+ * other StringField, but fields of the same Dictionary are compared for
+ * equality by their codes, and the hash code of the value is computed once,
+ * when the value is added to the dictionary.
+ *
+ * @see Dictionary
+ */
+public class EncodedStringField extends StringField {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient Dictionary dictionary;
+    private int code;
+    private int hash;
+
+    EncodedStringField(Dictionary dictionary, int code, String value) {
+        super(value, Type.STRING_LEN);
+        this.dictionary = dictionary;
+        this.code = code;
+        this.hash = value.hashCode();
+    }
+
+    /**
+     * @return the dictionary this field was read through
+     */
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return the code of the value of this field in its dictionary
+     */
+    public int getCode() {
+        return code;
+    }
+
+    private boolean sameDictionary(Object field) {
+        return field instanceof EncodedStringField && dictionary != null
+                && ((EncodedStringField) field).dictionary == dictionary;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public boolean equals(Object field) {
+        if (sameDictionary(field))
+            return ((EncodedStringField) field).code == code;
+        return super.equals(field);
+    }
+
+    public boolean compare(Predicate.Op op, Field val) {
+        if (sameDictionary(val)) {
+            if (op == Predicate.Op.EQUALS)
+                return ((EncodedStringField) val).code == code;
+            if (op == Predicate.Op.NOT_EQUALS)
+                return ((EncodedStringField) val).code != code;
+        }
+        return super.compare(op, val);
+    }
+}
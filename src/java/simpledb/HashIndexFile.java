@@ -0,0 +1,397 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashIndexFile is an IndexFile that stores (key, RecordId) entries for one
+ * field of a base table -- normally its primary key -- with extendible
+ * hashing. A directory on page 0 maps the low bits of the hash of a key to
+ * the bucket page holding it, so an equality lookup reads the directory and
+ * one bucket, independent of the size of the table. The format of the pages
+ * is described in HashIndexPage.
+ * <p>
+ * A full bucket is split in two, doubling the directory if the bucket
+ * already uses as many bits as the directory. A full bucket gets overflow
+ * pages instead once the directory has grown to fill its page, when all of
+ * its entries and the new one have the same hash, which no split would
+ * separate, for instance duplicates of one key, and when it already has
+ * overflow pages. Deletes only remove the entry; buckets are never merged.
+ * <p>
+ * Transactions lock the directory READ_ONLY on their way to a bucket, and
+ * only until the bucket is locked, so that inserts into different buckets
+ * do not wait for each other. An insert locks the directory READ_WRITE
+ * only when it splits a bucket, but then keeps it until it commits or
+ * aborts, as the split is logged and undone with the rest of the
+ * transaction: until then, every other lookup or insert into the index
+ * waits for it, and may give up on the lock and abort. Splits are rare
+ * once the directory has grown to the size of the index, so this mostly
+ * slows down the loading of a table.
+ *
+ * @see simpledb.HashIndexPage
+ */
+public class HashIndexFile implements IndexFile {
+
+    private static final long serialVersionUID = 1L;
+    static final int DIRECTORY_PGNO = 0;
+
+    private File file;
+    private int tableid;
+    private int keyField;
+    /** Bytes per page; the page size of the base table */
+    private int pageSize;
+
+    /**
+     * Constructs a hash index on the primary key of the specified table, as
+     * recorded by {@link Catalog#addTable(DbFile, String, String)}.
+     *
+     * @throws IllegalArgumentException if the table has no primary key
+     */
+    public HashIndexFile(File f, int tableid) {
+        this(f, tableid, primaryKeyField(tableid));
+    }
+
+    /**
+     * Constructs a hash index backed by the specified file, creating an
+     * empty index if the file does not exist yet. The base table must
+     * already have been added to the catalog.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            index.
+     * @param tableid
+     *            the id of the indexed base table
+     * @param keyField
+     *            the index of the key field in the base table
+     */
+    public HashIndexFile(File f, int tableid, int keyField) {
+        this.file = f;
+        this.tableid = tableid;
+        this.keyField = keyField;
+        this.pageSize = Database.getCatalog().getPageSize(tableid);
+        if (file.length() == 0) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.write(HashIndexPage.createDirectoryPageData(1, pageSize));
+                raf.write(HashIndexPage.createEmptyPageData(pageSize));
+                raf.close();
+            } catch (IOException e) {
+                throw new RuntimeException("failed to create empty hash index in " + f, e);
+            }
+        }
+    }
+
+    private static int primaryKeyField(int tableid) {
+        String pkey = Database.getCatalog().getPrimaryKey(tableid);
+        if (pkey == null || pkey.equals("")) {
+            throw new IllegalArgumentException("table " + tableid + " has no primary key");
+        }
+        return Database.getCatalog().getTupleDesc(tableid).fieldNameToIndex(pkey);
+    }
+
+    /**
+     * Returns the File backing this HashIndexFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashIndexFile, the hash code of
+     * the absolute file name of the backing file.
+     */
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    public int getTableId() {
+        return tableid;
+    }
+
+    public int getKeyField() {
+        return keyField;
+    }
+
+    public Type getKeyType() {
+        return getTupleDesc().getFieldType(keyField);
+    }
+
+    /**
+     * Returns the TupleDesc of the base table; the iterators of this file
+     * return base table tuples.
+     */
+    public TupleDesc getTupleDesc() {
+        return Database.getCatalog().getTupleDesc(tableid);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte[] b = new byte[pageSize];
+            raf.seek((long) pageSize * pid.pageNumber());
+            raf.readFully(b);
+            raf.close();
+            return new HashIndexPage(new IndexPageId(pid.getTableId(), pid.pageNumber()), b);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("page " + pid + " does not exist in " + file);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek((long) pageSize * page.getId().pageNumber());
+        raf.write(page.getPageData());
+        raf.close();
+    }
+
+    /**
+     * Returns the number of pages in this HashIndexFile.
+     */
+    public int numPages() {
+        return (int) (file.length() / pageSize);
+    }
+
+    /**
+     * Returns the number of bytes per page of this index, which is the page
+     * size of its base table.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * The directory and one bucket; overflow pages are rare enough to be
+     * ignored.
+     */
+    public int pagesPerProbe() {
+        return 2;
+    }
+
+    /**
+     * Hashes a key, mixing the bits of Field.hashCode() so that consecutive
+     * integer keys do not all differ in the same few bits only.
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    HashIndexPage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return (HashIndexPage) Database.getBufferPool().getPage(tid,
+                new IndexPageId(getId(), pgNo), perm);
+    }
+
+    /**
+     * Appends a new, empty bucket page with the specified local depth to the
+     * file and returns it, locked for writing.
+     */
+    private HashIndexPage allocatePage(TransactionId tid, int depth)
+            throws IOException, TransactionAbortedException, DbException {
+        int pgNo;
+        synchronized (this) {
+            pgNo = numPages();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek((long) pageSize * pgNo);
+            raf.write(HashIndexPage.createEmptyPageData(pageSize));
+            raf.close();
+        }
+        HashIndexPage page = getPage(tid, pgNo, Permissions.READ_WRITE);
+        page.setDepth(depth);
+        return page;
+    }
+
+    /**
+     * Returns the first page of the bucket that holds key, fetched with the
+     * specified permissions. The directory is locked READ_ONLY, and released
+     * once the bucket is locked, unless tid held it before: as long as tid
+     * holds the bucket, no other transaction can split it.
+     */
+    HashIndexPage findBucket(TransactionId tid, Field key, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        Set<PageId> held = new HashSet<PageId>();
+        HashIndexPage dir = lock(tid, DIRECTORY_PGNO, Permissions.READ_ONLY, held);
+        HashIndexPage bucket = getPage(tid, dir.getBucket(hash(key)), perm);
+        IndexPages.unlock(tid, dir, held);
+        return bucket;
+    }
+
+    /**
+     * Fetches a page of this file on the way to a bucket.
+     * @see IndexPages#lock
+     */
+    private HashIndexPage lock(TransactionId tid, int pgNo, Permissions perm, Set<PageId> held)
+            throws TransactionAbortedException, DbException {
+        return (HashIndexPage) IndexPages.lock(tid, new IndexPageId(getId(), pgNo), perm, held);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new DbException("Cannot index a tuple that is not stored in table " + tableid);
+        }
+        Field key = t.getField(keyField);
+        int h = hash(key);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+
+        Set<PageId> held = new HashSet<PageId>();
+        HashIndexPage dir = lock(tid, DIRECTORY_PGNO, Permissions.READ_ONLY, held);
+        HashIndexPage bucket = lock(tid, dir.getBucket(h), Permissions.READ_WRITE, held);
+        IndexPages.unlock(tid, dir, held);
+        if (!bucket.isFull()) {
+            bucket.addEntry(key, rid);
+            IndexPages.dirtied(tid, bucket, dirtied);
+            return dirtied;
+        }
+        if (!canSplit(bucket, h)) {
+            addToOverflow(tid, bucket, key, rid, dirtied);
+            return dirtied;
+        }
+
+        // the bucket splits: start again with the directory locked
+        // READ_WRITE, released first so that two splits do not wait for
+        // each other to give up their READ_ONLY locks
+        IndexPages.unlock(tid, bucket, held);
+        dir = getPage(tid, DIRECTORY_PGNO, Permissions.READ_WRITE);
+        try {
+            while (true) {
+                int slot = h & ((1 << dir.getDepth()) - 1);
+                bucket = getPage(tid, dir.getBucket(slot), Permissions.READ_WRITE);
+                if (!bucket.isFull()) {
+                    bucket.addEntry(key, rid);
+                    IndexPages.dirtied(tid, bucket, dirtied);
+                    return dirtied;
+                }
+                if (!canSplit(bucket, h)) {
+                    addToOverflow(tid, bucket, key, rid, dirtied);
+                    return dirtied;
+                }
+                splitBucket(tid, dir, slot, bucket, dirtied);
+            }
+        } finally {
+            // another transaction may have split the bucket in the meantime
+            IndexPages.unlock(tid, dir, held);
+        }
+    }
+
+    /**
+     * Returns whether a full bucket should be split to make room for an
+     * entry whose key hashes to h, rather than get an overflow page: not if
+     * it uses as many bits as the directory can hold, nor if it has
+     * overflow pages already, whose entries a split does not move, nor if
+     * all of its entries hash to h, so that none would move to the new
+     * bucket.
+     */
+    private boolean canSplit(HashIndexPage bucket, int h) {
+        if (bucket.getDepth() == HashIndexPage.getMaxGlobalDepth(pageSize)
+                || bucket.getNext() != 0) {
+            return false;
+        }
+        for (int i = 0; i < bucket.getNumEntries(); i++) {
+            if (hash(bucket.getKey(i)) != h) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a full bucket on the next bit of the hash: the entries with the
+     * bit set move to a new bucket, and the directory slots with the bit set
+     * that pointed at the old bucket now point at the new one.
+     *
+     * @param slot a directory slot that points at bucket
+     */
+    private void splitBucket(TransactionId tid, HashIndexPage dir, int slot,
+            HashIndexPage bucket, ArrayList<Page> dirtied)
+            throws IOException, TransactionAbortedException, DbException {
+        int depth = bucket.getDepth();
+        IndexPages.dirtied(tid, dir, dirtied);
+        IndexPages.dirtied(tid, bucket, dirtied);
+        if (depth == dir.getDepth()) {
+            dir.doubleDirectory();
+        }
+        HashIndexPage image = allocatePage(tid, depth + 1);
+        IndexPages.dirtied(tid, image, dirtied);
+        bucket.setDepth(depth + 1);
+        for (int i = bucket.getNumEntries() - 1; i >= 0; i--) {
+            Field k = bucket.getKey(i);
+            if (((hash(k) >>> depth) & 1) == 1) {
+                image.addEntry(k, bucket.getRecordId(i));
+                bucket.deleteEntry(i);
+            }
+        }
+        int imagePgNo = image.getId().pageNumber();
+        int stride = 1 << depth;
+        for (int i = slot & (stride - 1); i < (1 << dir.getDepth()); i += stride) {
+            if (((i >>> depth) & 1) == 1)
+                dir.setBucket(i, imagePgNo);
+        }
+    }
+
+    /**
+     * Adds an entry to the first overflow page of a bucket that has room,
+     * appending a new overflow page if all of them are full.
+     */
+    private void addToOverflow(TransactionId tid, HashIndexPage bucket,
+            Field key, RecordId rid, ArrayList<Page> dirtied)
+            throws IOException, TransactionAbortedException, DbException {
+        HashIndexPage page = bucket;
+        while (page.isFull()) {
+            if (page.getNext() == 0) {
+                HashIndexPage overflow = allocatePage(tid, page.getDepth());
+                page.setNext(overflow.getId().pageNumber());
+                IndexPages.dirtied(tid, page, dirtied);
+                page = overflow;
+            } else {
+                page = getPage(tid, page.getNext(), Permissions.READ_WRITE);
+            }
+        }
+        page.addEntry(key, rid);
+        IndexPages.dirtied(tid, page, dirtied);
+    }
+
+    // see DbFile.java for javadocs
+    public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        Field key = t.getField(keyField);
+        HashIndexPage page = findBucket(tid, key, Permissions.READ_WRITE);
+        while (true) {
+            for (int i = 0; i < page.getNumEntries(); i++) {
+                if (page.getKey(i).equals(key) && page.getRecordId(i).equals(rid)) {
+                    page.deleteEntry(i);
+                    return page;
+                }
+            }
+            if (page.getNext() == 0)
+                break;
+            page = getPage(tid, page.getNext(), Permissions.READ_WRITE);
+        }
+        throw new DbException("The index does not contain an entry for this tuple: " + t);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashIndexFileIterator(tid, this, null);
+    }
+
+    // see IndexFile.java for javadocs
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        if (!supports(ipred.getOp())) {
+            throw new IllegalArgumentException("hash index cannot evaluate " + ipred);
+        }
+        return new HashIndexFileIterator(tid, this, ipred);
+    }
+}
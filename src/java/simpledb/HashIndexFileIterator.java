@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the base table tuples referenced by the entries of a
+ * HashIndexFile. With an equality predicate only the bucket of the key and
+ * its overflow pages are read; without one, every bucket page of the file is
+ * read in page order, in which case the tuples come in no particular order.
+ */
+public class HashIndexFileIterator implements DbFileIterator {
+
+    private static final long serialVersionUID = 1L;
+    TransactionId tid;
+    private HashIndexFile file;
+    private IndexPredicate ipred;
+    HashIndexPage currentPage;
+    int currentPos;
+    Tuple nextTuple;
+
+    /**
+     * @param ipred the equality predicate on the key field, or null to
+     *          return the tuples of all entries
+     */
+    public HashIndexFileIterator(TransactionId tid, HashIndexFile file, IndexPredicate ipred) {
+        this.tid = tid;
+        this.file = file;
+        this.ipred = ipred;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        if (ipred != null) {
+            currentPage = file.findBucket(tid, ipred.getField(), Permissions.READ_ONLY);
+        } else if (file.numPages() > 1) {
+            currentPage = file.getPage(tid, 1, Permissions.READ_ONLY);
+        } else {
+            currentPage = null;
+        }
+        currentPos = 0;
+        nextTuple = null;
+    }
+
+    @Override
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (currentPage == null) {
+            return false;
+        }
+        if (nextTuple == null) {
+            nextTuple = fetchNext();
+        }
+        return nextTuple != null;
+    }
+
+    @Override
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("There are no more tuples in the index");
+        }
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    public void close() {
+        currentPage = null;
+        nextTuple = null;
+    }
+
+    /**
+     * Returns the base tuple of the next matching entry, or null once all
+     * pages to be read have been read.
+     */
+    private Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (currentPage != null) {
+            if (currentPos >= currentPage.getNumEntries()) {
+                // overflow pages are bucket pages too, so a full scan just
+                // reads the pages of the file in order
+                int nextPgNo;
+                if (ipred != null) {
+                    nextPgNo = currentPage.getNext();
+                } else {
+                    nextPgNo = currentPage.getId().pageNumber() + 1;
+                    if (nextPgNo >= file.numPages())
+                        nextPgNo = 0;
+                }
+                currentPage = nextPgNo == 0 ? null
+                        : file.getPage(tid, nextPgNo, Permissions.READ_ONLY);
+                currentPos = 0;
+                continue;
+            }
+            Field key = currentPage.getKey(currentPos);
+            RecordId rid = currentPage.getRecordId(currentPos);
+            currentPos++;
+            if (ipred != null && !ipred.matches(key)) {
+                continue;
+            }
+            HeapPage hp = (HeapPage) Database.getBufferPool().getPage(tid,
+                    rid.getPageId(), Permissions.READ_ONLY);
+            Tuple t = hp.getTuple(rid.tupleno());
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,302 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Each instance of HashIndexPage stores one page of a HashIndexFile and
+ * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Every page starts with a one byte category, an integer depth, an integer
+ * count of the entries on the page and an integer page number of the next
+ * overflow page (0 if there is none). The rest of the page depends on the
+ * category:
+ * <ul>
+ * <li> The DIRECTORY page is page 0 of every HashIndexFile. Its depth is
+ * the global depth of the file, and it holds <tt>2^depth</tt> bucket page
+ * numbers, one per hash value of that many bits.
+ * <li> BUCKET pages hold <tt>numEntries</tt> unordered entries, each a key
+ * followed by the page number and tuple number of the base table tuple it
+ * points to. The depth is the local depth of the bucket: all its keys
+ * agree on that many low bits of their hash. Overflow pages of a bucket
+ * are BUCKET pages as well.
+ * </ul>
+ * An all zero page is an empty bucket of depth 0.
+ *
+ * @see HashIndexFile
+ * @see BufferPool
+ */
+public class HashIndexPage implements Page {
+
+    static final int BUCKET = 0;
+    static final int DIRECTORY = 1;
+
+    /** Bytes used by the category, depth, entry count and overflow pointer. */
+    static final int HEADER_SIZE = 1 + 4 + 4 + 4;
+    /** Bytes used by the RecordId of an entry. */
+    static final int RID_SIZE = 4 + 4;
+    /** Bytes used by a bucket pointer of the directory. */
+    static final int POINTER_SIZE = 4;
+
+    IndexPageId id;
+    int baseTableId;
+    Type keyType;
+    int category;
+    int depth;
+    int numEntries;
+    int next;
+    int maxEntries;
+    /** Bytes per page, including header; the length of the page data */
+    int pageSize;
+
+    Field keys[];
+    RecordId rids[];
+    int buckets[];
+
+    TransactionId lastTid;
+    byte[] oldData;
+
+    /**
+     * Create a HashIndexPage from a set of bytes of data read from disk. The
+     * key type and base table are taken from the HashIndexFile registered in
+     * the catalog under id.getTableId().
+     *
+     * @see HashIndexFile
+     */
+    public HashIndexPage(IndexPageId id, byte[] data) throws IOException {
+        this.id = id;
+        HashIndexFile file = (HashIndexFile) Database.getCatalog().getDbFile(id.getTableId());
+        this.baseTableId = file.getTableId();
+        this.keyType = file.getKeyType();
+        this.pageSize = data.length;
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        category = dis.readByte();
+        depth = dis.readInt();
+        numEntries = dis.readInt();
+        next = dis.readInt();
+
+        try {
+            if (category == DIRECTORY) {
+                maxEntries = 1 << getMaxGlobalDepth(pageSize);
+                buckets = new int[maxEntries];
+                for (int i = 0; i < numEntries; i++)
+                    buckets[i] = dis.readInt();
+            } else {
+                maxEntries = getMaxBucketEntries(keyType, pageSize);
+                keys = new Field[maxEntries];
+                rids = new RecordId[maxEntries];
+                for (int i = 0; i < numEntries; i++) {
+                    keys[i] = keyType.parse(dis);
+                    HeapPageId pid = new HeapPageId(baseTableId, dis.readInt());
+                    rids[i] = new RecordId(pid, dis.readInt());
+                }
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("parsing error!");
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of entries that fit on a bucket page of the
+     *         specified size with keys of the specified type
+     */
+    static int getMaxBucketEntries(Type keyType, int pageSize) {
+        return (pageSize - HEADER_SIZE) / (keyType.getLen() + RID_SIZE);
+    }
+
+    /**
+     * @return the largest global depth whose directory fits on one page of
+     *         the specified size
+     */
+    static int getMaxGlobalDepth(int pageSize) {
+        int pointers = (pageSize - HEADER_SIZE) / POINTER_SIZE;
+        return 31 - Integer.numberOfLeadingZeros(pointers);
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * bucket page of the specified size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize];
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to a directory of
+     * global depth 0 whose only entry points at the specified bucket page,
+     * on a page of the specified size.
+     */
+    public static byte[] createDirectoryPageData(int bucketPgNo, int pageSize) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(DIRECTORY);
+            dos.writeInt(0);
+            dos.writeInt(1);
+            dos.writeInt(0);
+            dos.writeInt(bucketPgNo);
+            dos.write(new byte[pageSize - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public HashIndexPage getBeforeImage() {
+        try {
+            return new HashIndexPage(id, oldData);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData().clone();
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public IndexPageId getId() {
+        return id;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @see #HashIndexPage
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(category);
+            dos.writeInt(depth);
+            dos.writeInt(numEntries);
+            dos.writeInt(next);
+            if (category == DIRECTORY) {
+                for (int i = 0; i < numEntries; i++)
+                    dos.writeInt(buckets[i]);
+            } else {
+                for (int i = 0; i < numEntries; i++) {
+                    keys[i].serialize(dos);
+                    dos.writeInt(rids[i].getPageId().pageNumber());
+                    dos.writeInt(rids[i].tupleno());
+                }
+            }
+            // padding
+            dos.write(new byte[pageSize - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastTid = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return lastTid;
+    }
+
+    /**
+     * @return the global depth of a directory page, or the local depth of
+     *         a bucket page
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public boolean isFull() {
+        return numEntries == maxEntries;
+    }
+
+    /** @return the page number of the next overflow page, or 0 if there is none */
+    public int getNext() {
+        return next;
+    }
+
+    public void setNext(int pgNo) {
+        next = pgNo;
+    }
+
+    public Field getKey(int i) {
+        return keys[i];
+    }
+
+    public RecordId getRecordId(int i) {
+        return rids[i];
+    }
+
+    /** Adds an entry to a bucket page that is not full. */
+    public void addEntry(Field key, RecordId rid) {
+        if (isFull())
+            throw new IllegalStateException("bucket page " + id.pageNumber() + " is full");
+        keys[numEntries] = key;
+        rids[numEntries] = rid;
+        numEntries++;
+    }
+
+    /**
+     * Removes the entry at the specified position of a bucket page. Entries
+     * are unordered, so the last entry takes its place.
+     */
+    public void deleteEntry(int i) {
+        numEntries--;
+        keys[i] = keys[numEntries];
+        rids[i] = rids[numEntries];
+        keys[numEntries] = null;
+        rids[numEntries] = null;
+    }
+
+    /** @return the page number of the bucket for the specified hash value */
+    public int getBucket(int hash) {
+        return buckets[hash & (numEntries - 1)];
+    }
+
+    public void setBucket(int i, int pgNo) {
+        buckets[i] = pgNo;
+    }
+
+    /**
+     * Doubles the directory, so that it uses one more bit of the hash. Both
+     * halves point at the same buckets until one of them is split.
+     */
+    public void doubleDirectory() {
+        if (depth == getMaxGlobalDepth(pageSize))
+            throw new IllegalStateException("directory cannot grow past depth " + depth);
+        System.arraycopy(buckets, 0, buckets, numEntries, numEntries);
+        numEntries *= 2;
+        depth++;
+    }
+}
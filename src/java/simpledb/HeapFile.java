@@ -8,9 +8,18 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor; a table can instead store its tuples as variable-length
+ * records in SlottedHeapPages. The pages of a compressed HeapFile are
+ * stored deflated, and decompressed when they are read into the BufferPool.
+ * <p>
+ * Concurrent scans of a large HeapFile are synchronized: a scan that starts
+ * while another one is in progress starts at the page the other one has
+ * reached and wraps around to page 0 at the end of the file, so that the
+ * scans read the pages they have left in common once between them.
  * 
  * @see simpledb.HeapPage#HeapPage
+ * @see simpledb.SlottedHeapPage
+ * @see simpledb.CompressedPages
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
@@ -21,17 +30,93 @@ public class HeapFile implements DbFile {
 	private static final long serialVersionUID = 1L;
 	private File file;
 	private TupleDesc tupleDesc;
+	private ZoneMap zoneMap;
+	private boolean slotted;
+	private Dictionary[] dictionaries;
+	/** The compressed pages of this file, or null if it is not compressed */
+	private CompressedPages compressedPages;
+	/** Bytes per page, including header */
+	private int pageSize;
+	/** How many iterators are scanning this file */
+	private int activeScans;
+	/** The page a scan of this file has reached last */
+	private volatile int scanPosition;
 	
+    /**
+     * Constructs a heap file of plain HeapPages of the database page size,
+     * with no dictionary encoded fields, stored uncompressed.
+     *
+     * @see #HeapFile(File, TupleDesc, boolean, Dictionary[], boolean, int)
+     */
+    public HeapFile(File f, TupleDesc td) {
+        this(f, td, false, new Dictionary[td.numFields()], BufferPool.getPageSize(), null);
+    }
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
      * @param f
      *            the file that stores the on-disk backing store for this heap
      *            file.
+     * @param td
+     *            the schema of the tuples of the file
+     * @param slotted
+     *            whether the pages of the file are SlottedHeapPages
+     * @param dictionaries
+     *            the dictionary of each dictionary encoded STRING_TYPE field,
+     *            null for the other fields
+     * @param compressed
+     *            whether the pages of the file are stored compressed
+     * @param pageSize
+     *            bytes per page of the file, including header
+     * @throws IOException
+     *            if the offset index of a compressed file cannot be read
      */
-    public HeapFile(File f, TupleDesc td) {
+    public HeapFile(File f, TupleDesc td, boolean slotted, Dictionary[] dictionaries,
+            boolean compressed, int pageSize) throws IOException {
+        this(f, td, slotted, dictionaries, pageSize,
+                compressed ? new CompressedPages(f, pageSize) : null);
+    }
+
+    private HeapFile(File f, TupleDesc td, boolean slotted, Dictionary[] dictionaries,
+            int pageSize, CompressedPages compressedPages) {
         this.file = f;
         this.tupleDesc = td;
+        this.slotted = slotted;
+        this.dictionaries = dictionaries.clone();
+        this.pageSize = pageSize;
+        this.compressedPages = compressedPages;
+        this.zoneMap = new ZoneMap(this);
+    }
+
+    /**
+     * @return the dictionary of the specified field if its values are stored
+     *         as dictionary codes, or null
+     */
+    public Dictionary getDictionary(int field) {
+        return dictionaries[field];
+    }
+
+    /**
+     * @return true if the tuples of this file are stored as variable-length
+     *         records in SlottedHeapPages
+     */
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    /**
+     * @return true if the pages of this file are stored compressed
+     */
+    public boolean isCompressed() {
+        return compressedPages != null;
+    }
+
+    /**
+     * Returns the number of bytes per page of this file, including header.
+     */
+    public int getPageSize() {
+        return pageSize;
     }
 
     /**
@@ -56,6 +141,14 @@ public class HeapFile implements DbFile {
     	return file.getAbsoluteFile().hashCode();
     }
 
+    /**
+     * Returns the per-page min/max summaries of the INT_TYPE columns of this
+     * file, used to skip pages in pruned scans.
+     */
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
     /**
      * Returns the TupleDesc of the table stored in this DbFile.
      * 
@@ -68,14 +161,20 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
     	try {
-			RandomAccessFile ras = new RandomAccessFile(file, "r");
-			byte[] b = new byte[BufferPool.PAGE_SIZE];
-			long byteOffSet = BufferPool.PAGE_SIZE * pid.pageNumber();
-			ras.seek(byteOffSet);
-			ras.read(b);
+			byte[] b;
+			if (compressedPages != null) {
+				b = compressedPages.readPage(pid.pageNumber());
+			} else {
+				RandomAccessFile ras = new RandomAccessFile(file, "r");
+				b = new byte[pageSize];
+				long byteOffSet = (long) pageSize * pid.pageNumber();
+				ras.seek(byteOffSet);
+				ras.read(b);
+				ras.close();
+			}
 			HeapPageId hpid = new HeapPageId(pid.getTableId(), pid.pageNumber());
-			ras.close();
-			return (Page) new HeapPage(hpid, b);
+			return slotted ? new SlottedHeapPage(hpid, b, tupleDesc, dictionaries)
+					: new HeapPage(hpid, b, tupleDesc, dictionaries);
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -88,20 +187,135 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-		RandomAccessFile ras = new RandomAccessFile(file, "rw");
     	PageId pid = page.getId();
-        byte[] b = page.getPageData();
-		long byteOffSet = BufferPool.PAGE_SIZE * pid.pageNumber();
-		ras.seek(byteOffSet);
-		ras.write(b);
-		ras.close();
+    	zoneMap.beforeWrite((HeapPage) page);
+    	try {
+    		byte[] b = page.getPageData();
+    		if (compressedPages != null) {
+    			compressedPages.writePage(pid.pageNumber(), b);
+    		} else {
+    			RandomAccessFile ras = new RandomAccessFile(file, "rw");
+    			long byteOffSet = (long) pageSize * pid.pageNumber();
+    			ras.seek(byteOffSet);
+    			ras.write(b);
+    			ras.close();
+    		}
+    	} finally {
+    		zoneMap.persist(pid.pageNumber());
+    	}
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int) (file.length() / BufferPool.PAGE_SIZE);
+        if (compressedPages != null)
+            return compressedPages.numPages();
+        return (int) (file.length() / pageSize);
+    }
+
+    /**
+     * Registers a scan of this file, to be ended with endScan.
+     *
+     * @return the page the scan should start at: the page another scan has
+     *         reached, if one is in progress and this file is larger than a
+     *         quarter of the BufferPool, and 0 otherwise
+     */
+    synchronized int startScan() {
+        activeScans++;
+        int n = numPages();
+        if (activeScans == 1 || scanPosition >= n
+                || n <= Database.getBufferPool().getNumPages() / 4)
+            return 0;
+        return scanPosition;
+    }
+
+    /**
+     * Records the page a scan of this file has reached.
+     */
+    void reportScanPosition(int pgNo) {
+        scanPosition = pgNo;
+    }
+
+    /**
+     * Notes that a scan registered with startScan is done.
+     */
+    synchronized void endScan() {
+        activeScans--;
+    }
+
+    /**
+     * Appends an empty page to the end of the file, and records in the zone
+     * map that it is empty.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        if (compressedPages != null) {
+            compressedPages.appendEmptyPage();
+        } else {
+        	FileOutputStream fos = new FileOutputStream(file, true);
+        	byte[] b = HeapPage.createEmptyPageData(pageSize);
+        	fos.write(b);
+        	fos.close();
+        }
+        int pgNo = numPages() - 1;
+        zoneMap.setEmpty(pgNo);
+        return pgNo;
+    }
+
+    /**
+     * Rewrites the tuples of this file in the layout of another HeapFile
+     * over the same file, for instance one that stores other fields as
+     * dictionary codes, or with another page size, or compressed. The tuples are written to a new file,
+     * which then replaces the old one; their RecordIds change, so the indexes of the
+     * table must be rebuilt. Reads and writes around the BufferPool, so it
+     * must only be used before any transaction uses the table.
+     *
+     * @param layout a HeapFile backed by the same file as this one
+     */
+    public void rewriteAs(HeapFile layout) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            int written = 0;
+            HeapPage out = layout.emptyPage(written);
+            for (int pgNo = 0; pgNo < numPages(); pgNo++) {
+                HeapPage in = (HeapPage) readPage(new HeapPageId(getId(), pgNo));
+                Iterator<Tuple> it = in.iterator();
+                while (it.hasNext()) {
+                    Tuple t = Tuple.getTuple(it.next());
+                    if (!out.hasRoomFor(t)) {
+                        os.write(out.getPageData());
+                        out = layout.emptyPage(++written);
+                    }
+                    try {
+                        out.insertTuple(t);
+                    } catch (DbException e) {
+                        throw new IOException("could not rewrite " + file + ": " + e.getMessage());
+                    }
+                }
+            }
+            os.write(out.getPageData());
+        } finally {
+            os.close();
+        }
+        if (layout.isCompressed()) {
+            CompressedPages.compressFile(tmp, file, layout.pageSize);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("could not replace " + file + " with " + tmp);
+        }
+        CompressedPages.indexFile(file).delete();
+    }
+
+    private HeapPage emptyPage(int pgNo) throws IOException {
+        HeapPageId pid = new HeapPageId(getId(), pgNo);
+        byte[] b = HeapPage.createEmptyPageData(pageSize);
+        return slotted ? new SlottedHeapPage(pid, b, tupleDesc, dictionaries)
+                : new HeapPage(pid, b, tupleDesc, dictionaries);
     }
 
     // see DbFile.java for javadocs
@@ -110,37 +324,85 @@ public class HeapFile implements DbFile {
         ArrayList<Page> a = new ArrayList<Page>();
         for (int i = 0; i < numPages(); i++) {
         	HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
-        	if (currentPage.getNumEmptySlots() > 0) {
+        	if (currentPage.hasRoomFor(t)) {
         		currentPage.insertTuple(t);
+        		zoneMap.widen(i, t);
         		a.add(currentPage);
         		return a;
         	}
         }
-    	FileOutputStream fos = new FileOutputStream(file, true);
-		byte[] b = new byte[BufferPool.PAGE_SIZE];
-		fos.write(b);
-		HeapPageId hpid = new HeapPageId(getId(), numPages() - 1);
+		HeapPageId hpid = new HeapPageId(getId(), appendEmptyPage());
     	HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
     	currentPage.insertTuple(t);
+    	zoneMap.widen(hpid.pageNumber(), t);
+    	a.add(currentPage);
 		return a;
     }
 
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        for (int i = 0; i < numPages(); i++) {
-        	HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_ONLY);
-        	if (currentPage.containsTuple(t)) {
-    			currentPage.deleteTuple(t);
-    			return currentPage;
-        	}
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()
+        		|| rid.getPageId().pageNumber() >= numPages()) {
+        	throw new DbException("The file does not contain this tuple: " + t);
+        }
+        HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, rid, Permissions.READ_WRITE);
+        if (!currentPage.containsTuple(t)) {
+        	throw new DbException("The file does not contain this tuple: " + t);
+        }
+        currentPage.deleteTuple(t);
+        return currentPage;
+    }
+
+    /**
+     * Replaces a tuple of this file with new values, in place; the
+     * replacement takes over the RecordId of t.
+     *
+     * @return the page that was modified
+     * @throws DbException if the tuple is not in this file, or the new values
+     *         do not fit on its page
+     */
+    public Page updateTuple(TransactionId tid, Tuple t, Tuple replacement)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()
+        		|| rid.getPageId().pageNumber() >= numPages()) {
+        	throw new DbException("The file does not contain this tuple: " + t);
         }
-        throw new DbException("The file does not contain this tuple: " + t);
+        HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, rid, Permissions.READ_WRITE);
+        currentPage.updateTuple(t, replacement);
+        zoneMap.widen(rid.getPageId().pageNumber(), replacement);
+        return currentPage;
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new HeapFileIterator(tid, this);
     }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the specified predicates. Pages whose zone map shows that none of
+     * their tuples can satisfy them are not read at all, and the predicates
+     * are evaluated on the bytes of the other pages.
+     *
+     * @see HeapPage#iterator(List)
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds) {
+        return iterator(tid, preds, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the specified predicates, with only the specified fields decoded up
+     * front; the other fields are decoded when they are first asked for.
+     *
+     * @param fields which fields to decode, or null to decode all of them
+     * @see #iterator(TransactionId, List)
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> preds, boolean[] fields) {
+        return new HeapFileIterator(tid, this, preds, fields);
+    }
 }
 
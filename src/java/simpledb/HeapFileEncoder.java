@@ -223,4 +223,63 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+   /** Convert the specified input text file into a binary page file of
+    * SlottedHeapPages, for a table declared <tt>slotted</tt> in the
+    * catalog. The input is read as for
+    * {@link #convert(File, File, int, int, Type[], char)}; lines with a
+    * malformed integer are skipped.
+    *
+    * @see SlottedHeapPage
+    * @param inFile The input file to read data from
+    * @param outFile The output file to write data to
+    * @param npagebytes The number of bytes per page in the output file
+    * @param typeAr the types of the fields of each input line/output tuple
+    * @throws IOException if the input/output file can't be opened
+    */
+  public static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    TupleDesc td = new TupleDesc(typeAr);
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    FileOutputStream os = new FileOutputStream(outFile);
+    ArrayList<byte[]> records = new ArrayList<byte[]>();
+    int used = SlottedHeapPage.HEADER_SIZE;
+    int npages = 0;
+
+    String line;
+    while ((line = br.readLine()) != null) {
+        if (line.trim().length() == 0)
+            continue;
+        String[] vals = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < typeAr.length; i++) {
+                String s = i < vals.length ? vals[i].trim() : "";
+                if (typeAr[i] == Type.INT_TYPE)
+                    t.setField(i, new IntField(Integer.parseInt(s)));
+                else
+                    t.setField(i, new StringField(s, Type.STRING_LEN));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println ("BAD LINE : " + line);
+            continue;
+        }
+
+        byte[] rec = SlottedHeapPage.encodeRecord(t, null);
+        if (used + SlottedHeapPage.SLOT_SIZE + rec.length > npagebytes) {
+            os.write(SlottedHeapPage.createPageData(records, npagebytes));
+            npages++;
+            records.clear();
+            used = SlottedHeapPage.HEADER_SIZE;
+        }
+        records.add(rec);
+        used += SlottedHeapPage.SLOT_SIZE + rec.length;
+    }
+    // if this file is empty, do flush an empty page to disk
+    if (!records.isEmpty() || npages == 0)
+        os.write(SlottedHeapPage.createPageData(records, npagebytes));
+    br.close();
+    os.close();
+  }
 }
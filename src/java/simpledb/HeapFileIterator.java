@@ -1,32 +1,66 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class HeapFileIterator implements DbFileIterator {
-	
+
 	/**
-	 * 
+	 *
 	 */
 	private static final long serialVersionUID = 1L;
 	int currentPageNo;
+	/** The page the scan started at; it wraps around to page 0 to end there */
+	int startPageNo;
+	/** Whether the scan went past the end of the file to page 0 */
+	boolean wrapped;
+	/** Whether the scan is registered with the file */
+	boolean scanning;
 	HeapPage currentPage;
 	Iterator<Tuple> currentPageIterator;
 	TransactionId tid;
 	private HeapFile file;
+	private List<Predicate> predicates;
+	private boolean[] fields;
 	boolean open;
-	
+
 	public HeapFileIterator(TransactionId tid, HeapFile file) {
+		this(tid, file, new ArrayList<Predicate>());
+	}
+
+	/**
+	 * Creates an iterator over the tuples that satisfy all of the predicates.
+	 * It skips the pages on which, according to the zone map of the file, no
+	 * tuple can satisfy them, and evaluates them on the bytes of the other
+	 * pages, so that tuples that fail them are never decoded.
+	 */
+	public HeapFileIterator(TransactionId tid, HeapFile file, List<Predicate> predicates) {
+		this(tid, file, predicates, null);
+	}
+
+	/**
+	 * Creates an iterator over the tuples that satisfy all of the
+	 * predicates, with only the specified fields decoded up front.
+	 *
+	 * @param fields which fields to decode, or null to decode all of them
+	 */
+	public HeapFileIterator(TransactionId tid, HeapFile file, List<Predicate> predicates, boolean[] fields) {
 		this.tid = tid;
 		this.open = false;
 		this.file = file;
+		this.predicates = predicates;
+		this.fields = fields;
 	}
-	
+
 	@Override
 	public void open() throws DbException, TransactionAbortedException {
-		currentPageNo = 0;
 		open = true;
-		this.setCurrentPage();
+		startPageNo = file.startScan();
+		scanning = true;
+		wrapped = false;
+		seekPage(startPageNo);
 	}
 
 	@Override
@@ -43,18 +77,22 @@ public class HeapFileIterator implements DbFileIterator {
 	@Override
 	public Tuple next() throws DbException, TransactionAbortedException,
 			NoSuchElementException {
-		if (open) { 
-			if  (currentPageIterator.hasNext()) {
-				return currentPageIterator.next();
-			} 
+		if (hasNextHelper()) {
+			return currentPageIterator.next();
 		}
 		throw new NoSuchElementException("There are no more tuples in the file");
 	}
 
 	@Override
 	public void rewind() throws DbException, TransactionAbortedException {
-		currentPageNo = 0;
-		setCurrentPage();
+		if (!scanning) {
+			file.startScan();
+			scanning = true;
+		}
+		// start where the scan started before, so that it returns the tuples
+		// in the same order
+		wrapped = false;
+		seekPage(startPageNo);
 	}
 
 	@Override
@@ -62,23 +100,62 @@ public class HeapFileIterator implements DbFileIterator {
 		currentPage = null;
 		currentPageIterator = null;
 		open = false;
+		endScan();
+	}
+
+	private void endScan() {
+		if (scanning) {
+			file.endScan();
+			scanning = false;
+		}
 	}
-	
+
 	private void setCurrentPage() throws TransactionAbortedException, DbException {
-		currentPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), currentPageNo), Permissions.READ_WRITE);
-		currentPageIterator = currentPage.iterator();
+		currentPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(file.getId(), currentPageNo), Permissions.READ_ONLY);
+		file.reportScanPosition(currentPageNo);
+		currentPageIterator = currentPage.iterator(predicates, fields);
+	}
+
+	/**
+	 * Moves to the first page at or after pgNo that is not pruned by the
+	 * zone map, wrapping around to page 0 at the end of the file if the scan
+	 * did not start there.
+	 * @return false if there is no such page before the page the scan
+	 *         started at
+	 */
+	private boolean seekPage(int pgNo) throws TransactionAbortedException, DbException {
+		ZoneMap zoneMap = file.getZoneMap();
+		while (true) {
+			int end = wrapped ? startPageNo : file.numPages();
+			while (pgNo < end && !zoneMap.mayMatch(pgNo, predicates)) {
+				pgNo++;
+			}
+			if (pgNo < end) {
+				break;
+			}
+			if (wrapped || startPageNo == 0) {
+				currentPage = null;
+				currentPageIterator = null;
+				endScan();
+				return false;
+			}
+			wrapped = true;
+			pgNo = 0;
+		}
+		currentPageNo = pgNo;
+		setCurrentPage();
+		return true;
 	}
-	
+
 	private boolean hasNextHelper() throws TransactionAbortedException, DbException {
 		if (open) {
-			if (currentPageIterator.hasNext()) {
-				return true;
-			} else if (currentPageNo < file.numPages() - 1) {
-				currentPageNo++;
-				setCurrentPage();
-				return hasNextHelper();
+			while (currentPageIterator != null) {
+				if (currentPageIterator.hasNext()) {
+					return true;
+				}
+				seekPage(currentPageNo + 1);
 			}
-		} 
+		}
 		return false;
 	}
 }
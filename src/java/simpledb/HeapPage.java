@@ -16,61 +16,123 @@ public class HeapPage implements Page {
     HeapPageId id;
     TupleDesc td;
     byte header[];
+    /** The tuples decoded so far; null for slots that are still only in data */
     Tuple tuples[];
     int numSlots;
     TransactionId lastTid;	
 
+    /** The dictionary of each dictionary encoded field, or null */
+    Dictionary dictionaries[];
+    /** The bytes the page was read from */
+    byte[] data;
+    /** Bytes per page, including header; the length of data */
+    int pageSize;
+    /** The number of bytes each field takes in a tuple slot */
+    int fieldLens[];
+    /** The offset of each field within a tuple slot */
+    int fieldOffsets[];
+    /** The number of bytes a tuple slot takes */
+    int recordSize;
     byte[] oldData;
-    ArrayList<Tuple> currentTuples;
-   
+    /** The LSN of the last log record of a change to this page, or -1;
+        only known for pages changed since they were read */
+    long lsn = -1;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.PAGE_SIZE*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is the length of data, which is the page size of the
+     * HeapFile the page was read from.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are only decoded from the bytes when they are first asked for,
+     * so scans that filter the page with {@link #iterator(List)} never
+     * build the tuples that fail their predicates.
+     * <p>
+     * A dictionary encoded field takes the four bytes of its code instead of
+     * the size of its type.
+     * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#PAGE_SIZE
+     * @see HeapFile#getPageSize
+     * @see HeapFile#getDictionary
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
-        this.id = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()),
+                getDictionaries(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage of a table with the specified schema and
+     * dictionaries from a set of bytes of data read from disk.
+     *
+     * @param dictionaries the dictionary of each dictionary encoded field,
+     *            null for the other fields
+     */
+    public HeapPage(HeapPageId id, byte[] data, TupleDesc td, Dictionary[] dictionaries) throws IOException {
+        this(id, td, dictionaries);
+        this.pageSize = data.length;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (numSlots == 0)
+            throw new IOException("page " + id + " of " + pageSize + " bytes is too small for a tuple");
+        this.data = data;
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i< header.length; i++)
-            header[i] = dis.readByte();
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }		
-        dis.close();
-        
-        currentTuples = new ArrayList<Tuple>();
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        // the records are decoded lazily, see getTupleAt
+        tuples = new Tuple[numSlots];
 
         setBeforeImage();
     }
 
+    /**
+     * Sets up the layout of the fields of a page; subclasses whose bytes are
+     * laid out differently read them themselves.
+     *
+     * @see SlottedHeapPage
+     */
+    HeapPage(HeapPageId id, TupleDesc td, Dictionary[] dictionaries) {
+        this.id = id;
+        this.td = td;
+        this.dictionaries = dictionaries;
+        fieldLens = new int[td.numFields()];
+        fieldOffsets = new int[td.numFields()];
+        for (int j=0; j<fieldLens.length; j++) {
+            fieldLens[j] = dictionaries[j] != null ? 4 : td.getFieldType(j).getLen();
+            if (j > 0)
+                fieldOffsets[j] = fieldOffsets[j-1] + fieldLens[j-1];
+            recordSize += fieldLens[j];
+        }
+    }
+
+    /**
+     * @return the dictionaries of the fields of the specified table, as
+     *         expected by {@link #HeapPage(HeapPageId, byte[], TupleDesc, Dictionary[])}
+     */
+    static Dictionary[] getDictionaries(int tableid) {
+        DbFile f = Database.getCatalog().getDbFile(tableid);
+        Dictionary[] dictionaries = new Dictionary[f.getTupleDesc().numFields()];
+        if (f instanceof HeapFile) {
+            for (int j=0; j<dictionaries.length; j++)
+                dictionaries[j] = ((HeapFile) f).getDictionary(j);
+        }
+        return dictionaries;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() {        
-       return (int) Math.floor((BufferPool.PAGE_SIZE * 8.0) / (td.getSize() * 8.0 + 1));
+       return (int) Math.floor((pageSize * 8.0) / (recordSize * 8.0 + 1));
     }
 
     /**
@@ -85,7 +147,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            return new HeapPage(id,oldData);
+            return new HeapPage(id,oldData,td,dictionaries);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -98,6 +160,13 @@ public class HeapPage implements Page {
         oldData = getPageData().clone();
     }
 
+    /** Return a page of the same kind with the specified contents of this
+        page, as returned by getPageData -- used to write the page while it
+        may change */
+    HeapPage copyOf(byte[] data) throws IOException {
+        return new HeapPage(id, data, td, dictionaries);
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -106,34 +175,114 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in data of the first byte of the specified slot
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * recordSize;
+    }
+
+    /**
+     * @return the offset in data of the first byte of the specified field of
+     *         the tuple in a slot
+     */
+    int fieldPosition(int slotId, int field) {
+        return slotOffset(slotId) + fieldOffsets[field];
+    }
+
+    /**
+     * Returns the tuple in a used slot, decoding it from data the first time
+     * it is asked for.
+     */
+    private Tuple getTupleAt(int slotId) throws NoSuchElementException {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = decodeTuple(slotId);
+            tuples[slotId] = t;
+        }
+        return t;
+    }
+
+    /**
+     * Decodes the specified field of the tuple in a slot from the bytes the
+     * page was read from.
+     */
+    Field decodeField(int slotId, int field) throws NoSuchElementException {
+        return decodeAt(field, fieldPosition(slotId, field));
+    }
+
+    /**
+     * Decodes the specified field from the bytes at pos in data. Strings are
+     * decoded like Type.STRING_TYPE.parse does, without copying their bytes
+     * first; dictionary encoded fields are looked up by their code.
+     */
+    Field decodeAt(int field, int pos) throws NoSuchElementException {
+        if (dictionaries[field] != null)
+            return dictionaries[field].getField(readInt(pos));
+        if (td.getFieldType(field) == Type.INT_TYPE)
+            return new IntField(readInt(pos));
+        int len = readInt(pos);
+        if (len < 0 || len > Type.STRING_LEN)
+            throw new NoSuchElementException("parsing error!");
+        return new StringField(new String(data, pos + 4, len), Type.STRING_LEN);
+    }
+
+    /**
+     * Adds the values of the dictionary encoded fields of a tuple that is
+     * about to be stored on this page to their dictionaries, so that writing
+     * the page never has to.
+     */
+    void encodeFields(Tuple t) throws DbException {
+        for (int j=0; j<dictionaries.length; j++) {
+            if (dictionaries[j] == null)
+                continue;
+            try {
+                dictionaries[j].encode(t.getField(j));
+            } catch (IOException e) {
+                throw new DbException("could not add to the dictionary of field " + j + ": " + e);
             }
-            return null;
         }
+    }
+
+    /**
+     * Writes the specified field of a tuple as it is stored on a page: its
+     * code if the field is dictionary encoded, and otherwise as serialized
+     * by the field itself.
+     */
+    void writeField(DataOutputStream dos, int field, Field f) throws IOException {
+        if (dictionaries[field] != null)
+            dos.writeInt(dictionaries[field].encode(f));
+        else
+            f.serialize(dos);
+    }
+
+    /**
+     * Builds the tuple in a slot that has not been decoded yet with only the
+     * specified fields; the others are decoded by the tuple when they are
+     * asked for.
+     */
+    private Tuple decodeFields(int slotId, boolean[] fields) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(id, slotId));
+        for (int j=0; j<td.numFields(); j++) {
+            if (fields[j])
+                t.setField(j, decodeField(slotId, j));
+        }
+        t.setSource(this);
+        return t;
+    }
 
+    /**
+     * Suck up a tuple from the bytes of the page.
+     */
+    Tuple decodeTuple(int slotId) throws NoSuchElementException {
         // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(id, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        int pos = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            t.setField(j, decodeAt(j, pos));
+            pos += fieldLens[j];
         }
 
         return t;
@@ -151,64 +300,42 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] page = new byte[pageSize];
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        System.arraycopy(header, 0, page, 0, header.length);
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        // create the tuples; empty slots stay zero
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
 
-                }
+            // a slot that was never decoded is unchanged since it was read
+            if (tuples[i] == null) {
+                System.arraycopy(data, slotOffset(i), page, slotOffset(i), recordSize);
                 continue;
             }
 
-            // non-empty slot
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
-                    f.serialize(dos);
-                
+                    writeField(dos, j, f);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            try {
+                dos.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.arraycopy(baos.toByteArray(), 0, page, slotOffset(i), recordSize);
         }
 
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -221,8 +348,18 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generates a byte array corresponding to an empty HeapPage of the
+     * specified size, for a HeapFile whose page size is not the database
+     * page size.
+     *
+     * @see HeapFile#getPageSize
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -233,17 +370,30 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-    	for (int i = 0; i < tuples.length; i++) {
-    		if (tuples[i] != null && tuples[i].equals(t)) {
-    			if (isSlotUsed(i)) {
-    				markSlotUsed(i, false);
-    				return;
-    			} else {
-    				throw new DbException("This tuple slot is already empty");
-    			}
-    		}
+    	int i = findSlot(t);
+    	if (i < 0) {
+    		throw new DbException("This tuple does not exist on this page");
+    	}
+    	if (!isSlotUsed(i)) {
+    		throw new DbException("This tuple slot is already empty");
+    	}
+    	markSlotUsed(i, false);
+    }
+
+    /**
+     * @return the slot named by the RecordId of the specified tuple, or -1
+     *         if it names no slot of this page
+     */
+    int findSlot(Tuple t) {
+    	RecordId rid = t.getRecordId();
+    	if (rid == null || !id.equals(rid.getPageId())) {
+    		return -1;
+    	}
+    	int i = rid.tupleno();
+    	if (i < 0 || i >= numSlots) {
+    		return -1;
     	}
-    	throw new DbException("This tuple does not exist on this page");
+    	return i;
     }
 
     /**
@@ -260,7 +410,8 @@ public class HeapPage implements Page {
         if (!this.td.equals(t.getTupleDesc())) {
         	throw new DbException("Tried to insert a tuple into a page of incompatible types");
         }
-        for (int i = 0; i < tuples.length; i++) {
+        encodeFields(t);
+        for (int i = 0; i < numSlots; i++) {
         	if (!isSlotUsed(i)) {
         		markSlotUsed(i, true);
         		tuples[i] = t;
@@ -271,6 +422,80 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Puts t into the specified slot, or empties the slot if t is null,
+     * whatever the slot held before. Used by rollback and recovery, which
+     * give slots back the contents the log says they had, so that applying
+     * the same change twice does no harm.
+     */
+    void setSlot(int i, Tuple t) throws DbException {
+        if (i < 0 || i >= numSlots) {
+            throw new DbException("page " + id + " has no slot " + i);
+        }
+        if (t == null) {
+            markSlotUsed(i, false);
+            tuples[i] = null;
+            return;
+        }
+        encodeFields(t);
+        markSlotUsed(i, true);
+        tuples[i] = t;
+        t.setRecordId(new RecordId(this.id, i));
+    }
+
+    /**
+     * @return the LSN of the last log record of a change to this page, or
+     *         -1 if it was not changed by a logged transaction since it
+     *         was read
+     */
+    public long getLsn() {
+        return lsn;
+    }
+
+    /**
+     * Records that the specified log record describes the latest change to
+     * this page; the page must not be written before the log up to it is.
+     */
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * @return true if the specified tuple can be added to this page
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    /**
+     * Replaces a tuple on this page with new values, in the same slot; the
+     * replacement takes over the RecordId of t.
+     * @throws DbException if t is not on this page, the tupledesc of the
+     *         replacement is mismatched, or the new values do not fit.
+     * @param t The tuple to replace.
+     * @param replacement The new values of the tuple.
+     */
+    public void updateTuple(Tuple t, Tuple replacement) throws DbException {
+        int i = checkUpdate(t, replacement);
+        tuples[i] = replacement;
+        replacement.setRecordId(new RecordId(this.id, i));
+    }
+
+    /**
+     * @return the slot of t, after checking that it can be replaced
+     */
+    int checkUpdate(Tuple t, Tuple replacement) throws DbException {
+        int i = findSlot(t);
+        if (i < 0 || !isSlotUsed(i)) {
+        	throw new DbException("This tuple does not exist on this page");
+        }
+        if (!this.td.equals(replacement.getTupleDesc())) {
+        	throw new DbException("Tried to update a tuple with values of incompatible types");
+        }
+        encodeFields(replacement);
+        return i;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -295,7 +520,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         int count = 0;
-        for (int i = 0; i < header.length * 8; i++) {
+        for (int i = 0; i < numSlots; i++) {
         	if (!isSlotUsed(i)) {
         		count++;
         	}
@@ -332,22 +557,173 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-    	currentTuples.clear();
-        for (int i = 0; i < tuples.length; i++) {
-        	if (isSlotUsed(i)) {
-        		currentTuples.add(tuples[i]);
+    	return iterator(new ArrayList<Predicate>());
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy all of
+     * the specified predicates. The predicates are evaluated on the bytes
+     * of the page where possible -- integer comparisons, equality with
+     * ASCII strings, and equality on dictionary encoded fields, which
+     * compares codes -- so the tuples that fail them are never decoded.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> preds) {
+    	return iterator(preds, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy all of
+     * the specified predicates, decoding only the specified fields of the
+     * tuples up front.
+     *
+     * @param fields which fields to decode, or null to decode all of them
+     * @see #iterator(List)
+     * @see Tuple#getField
+     */
+    public Iterator<Tuple> iterator(List<Predicate> preds, boolean[] fields) {
+    	ArrayList<SlotPredicate> slotPreds = new ArrayList<SlotPredicate>();
+    	for (Predicate p : preds) {
+    		slotPreds.add(new SlotPredicate(p));
+    	}
+    	ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+        	if (isSlotUsed(i) && matches(i, slotPreds)) {
+        		// a tuple changed since the page was read is only in tuples
+        		if (fields == null || tuples[i] != null) {
+        			result.add(getTupleAt(i));
+        		} else {
+        			result.add(decodeFields(i, fields));
+        		}
         	}
         }
-        return currentTuples.iterator();
+        return Collections.unmodifiableList(result).iterator();
     }
-    
-    protected boolean containsTuple(Tuple t) {
-    	for (int i = 0; i < tuples.length; i++) {
-    		if (tuples[i].equals(t)) {
-    			return true;
+
+    private boolean matches(int slot, List<SlotPredicate> preds) {
+    	for (SlotPredicate sp : preds) {
+    		if (!sp.matches(slot)) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * A Predicate compiled against the layout of this page.
+     */
+    private class SlotPredicate {
+    	final Predicate p;
+    	final boolean intCompare;
+    	int intOperand;
+    	/** Set for (in)equality with a value a dictionary does not have */
+    	boolean noCode;
+    	/** The operand as stored on a page, for string (in)equality; or null */
+    	byte[] stringOperand;
+
+    	SlotPredicate(Predicate p) {
+    		this.p = p;
+    		Field operand = p.getOperand();
+    		Dictionary dictionary = dictionaries[p.getField()];
+    		boolean equality = p.getOp() == Predicate.Op.EQUALS || p.getOp() == Predicate.Op.NOT_EQUALS;
+    		if (dictionary != null && operand instanceof StringField && equality) {
+    			// compare the codes stored on the page
+    			intOperand = dictionary.lookup(((StringField) operand).getValue());
+    			noCode = intOperand < 0;
+    			intCompare = !noCode;
+    			return;
+    		}
+    		intCompare = operand instanceof IntField
+    				&& td.getFieldType(p.getField()) == Type.INT_TYPE;
+    		if (intCompare) {
+    			intOperand = ((IntField) operand).getValue();
+    		} else if (dictionary == null && operand instanceof StringField
+    				&& (p.getOp() == Predicate.Op.EQUALS || p.getOp() == Predicate.Op.NOT_EQUALS)) {
+    			stringOperand = asciiBytes(((StringField) operand).getValue());
+    		}
+    	}
+
+    	boolean matches(int slot) {
+    		if (tuples[slot] != null) {
+    			// modified since the page was read, or decoded anyway
+    			return p.filter(tuples[slot]);
+    		}
+    		if (noCode) {
+    			return p.getOp() == Predicate.Op.NOT_EQUALS;
+    		}
+    		int off = fieldPosition(slot, p.getField());
+    		if (intCompare) {
+    			return compareInts(p.getOp(), readInt(off), intOperand);
     		}
+    		if (stringOperand != null) {
+    			boolean equal = readInt(off) == stringOperand.length;
+    			for (int i = 0; equal && i < stringOperand.length; i++) {
+    				equal = data[off + 4 + i] == stringOperand[i];
+    			}
+    			return equal == (p.getOp() == Predicate.Op.EQUALS);
+    		}
+    		// decode the one field the predicate needs
+    		return decodeField(slot, p.getField()).compare(p.getOp(), p.getOperand());
+    	}
+    }
+
+    int readInt(int off) {
+    	return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+    			| ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    /**
+     * @return the bytes StringField.serialize writes for s, or null if s is
+     *         not plain ASCII, whose bytes decode to s again
+     */
+    private static byte[] asciiBytes(String s) {
+    	if (s.length() > Type.STRING_LEN) {
+    		s = s.substring(0, Type.STRING_LEN);
+    	}
+    	byte[] b = new byte[s.length()];
+    	for (int i = 0; i < b.length; i++) {
+    		char c = s.charAt(i);
+    		if (c >= 0x80) {
+    			return null;
+    		}
+    		b[i] = (byte) c;
+    	}
+    	return b;
+    }
+
+    /** Compares two ints the way IntField.compare does. */
+    static boolean compareInts(Predicate.Op op, int value, int operand) {
+    	switch (op) {
+    	case EQUALS:
+    	case LIKE:
+    		return value == operand;
+    	case NOT_EQUALS:
+    		return value != operand;
+    	case GREATER_THAN:
+    		return value > operand;
+    	case GREATER_THAN_OR_EQ:
+    		return value >= operand;
+    	case LESS_THAN:
+    		return value < operand;
+    	case LESS_THAN_OR_EQ:
+    		return value <= operand;
     	}
     	return false;
     }
+
+    /**
+     * @return the tuple stored in the specified slot, or null if the slot
+     *         is empty
+     */
+    public Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            return null;
+        }
+        return getTupleAt(slot);
+    }
+
+    protected boolean containsTuple(Tuple t) {
+    	int i = findSlot(t);
+    	return i >= 0 && isSlotUsed(i);
+    }
 }
 
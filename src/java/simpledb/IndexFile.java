@@ -0,0 +1,70 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * The interface for secondary index files. An IndexFile maps the values of a
+ * single key field of a base table to the RecordIds of the tuples that hold
+ * them. Its pages are read through the BufferPool like those of any other
+ * DbFile, so they are cached and locked in the same way.
+ * <p>
+ * The inherited DbFile methods take tuples of the base table:
+ * {@link #insertTuple} adds an entry for a tuple that has already been
+ * stored in the base table (and so has a RecordId), {@link #deleteTuple}
+ * removes that entry again, and the iterators return the base table tuples
+ * that the matching entries point to.
+ */
+public interface IndexFile extends DbFile {
+
+    /**
+     * @return the id of the base table this index is built over
+     */
+    public int getTableId();
+
+    /**
+     * @return the index of the key field in the base table's TupleDesc
+     */
+    public int getKeyField();
+
+    /**
+     * @return true if {@link #indexIterator} can evaluate <tt>key op
+     *         constant</tt> for the specified operator.
+     */
+    public boolean supports(Predicate.Op op);
+
+    /**
+     * @return an estimate of the number of index pages read to find the
+     *         first entry matching a predicate, used by the optimizer to
+     *         cost index scans
+     */
+    public int pagesPerProbe();
+
+    /**
+     * Returns an iterator over the base table tuples whose key field
+     * satisfies the specified predicate.
+     *
+     * @param tid the transaction performing the lookup
+     * @param ipred the predicate on the key field; its operator must be
+     *          supported by this index
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred);
+
+    /**
+     * Inserts an entry for the specified base table tuple.
+     *
+     * @param tid The transaction performing the update
+     * @param t A tuple of the base table; t.getRecordId() must be set
+     * @return An ArrayList contain the index pages that were modified
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException;
+
+    /**
+     * Removes the entry for the specified base table tuple.
+     *
+     * @throws DbException if the index holds no entry for the tuple
+     */
+    public Page deleteTuple(TransactionId tid, Tuple t)
+        throws DbException, TransactionAbortedException;
+}
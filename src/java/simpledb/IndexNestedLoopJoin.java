@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins its outer child with a base table
+ * by probing an index of the table once for every outer tuple, instead of
+ * scanning the inner relation. The inner child is a scan of the table,
+ * possibly under Filters; it is never read, but the predicates of its
+ * Filters are applied to the tuples returned by the index.
+ * <p>
+ * Like Join, the returned tuples are the concatenation of the outer and the
+ * inner tuple.
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+    private IndexFile index;
+    private TransactionId tid;
+    private Predicate.Op probeOp;
+    private ArrayList<Predicate> residual;
+    private DbFileIterator probe;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; field 2 must be
+     *            the key field of index
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The scan of the right(inner) table, optionally under Filters
+     * @param index
+     *            the index of the inner table to probe
+     * @param tid
+     *            the transaction the probes run as a part of
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2, IndexFile index, TransactionId tid) {
+        super(p, child1, child2);
+        this.index = index;
+        this.tid = tid;
+        this.probeOp = probeOp(p.getOperator());
+        if (!index.supports(probeOp)) {
+            throw new IllegalArgumentException("index cannot evaluate " + probeOp);
+        }
+        this.residual = residualPredicates(child2);
+    }
+
+    /**
+     * Returns the operator that the key of the inner table must satisfy
+     * against the join field of an outer tuple: <tt>outer op inner</tt>
+     * holds exactly when <tt>inner probeOp(op) outer</tt> does.
+     */
+    static Predicate.Op probeOp(Predicate.Op joinOp) {
+        switch (joinOp) {
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        default:
+            return joinOp;
+        }
+    }
+
+    /**
+     * Returns the predicates of the Filters stacked on top of the inner scan.
+     * Filters do not change the TupleDesc, so their field indexes are valid
+     * for the base table tuples returned by the index.
+     */
+    static ArrayList<Predicate> residualPredicates(DbIterator inner) {
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        while (inner instanceof Filter) {
+            Filter f = (Filter) inner;
+            preds.add(f.getPredicate());
+            inner = f.getChildren()[0];
+        }
+        if (!(inner instanceof SeqScan) && !(inner instanceof IndexScan)) {
+            throw new IllegalArgumentException("inner child of an index join must be a scan");
+        }
+        return preds;
+    }
+
+    public IndexFile getIndex() {
+        return index;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        t1 = null;
+        probe = null;
+    }
+
+    public void close() {
+        child1.close();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        t1 = null;
+    }
+
+    /**
+     * Returns the next outer tuple joined with a matching inner tuple. The
+     * matches of each outer tuple are looked up with a single probe of the
+     * index.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    Tuple t2 = probe.next();
+                    if (matches(t2)) {
+                        return merge(t1, t2);
+                    }
+                }
+                probe.close();
+                probe = null;
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            t1 = child1.next();
+            Field key = t1.getField(predicate.getField1());
+            probe = index.indexIterator(tid, new IndexPredicate(probeOp, key));
+            probe.open();
+        }
+    }
+
+    private boolean matches(Tuple t2) {
+        if (!predicate.filter(t1, t2)) {
+            return false;
+        }
+        for (Predicate p : residual) {
+            if (!p.filter(t2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple result = new Tuple(tupleDesc);
+        int t1NumFields = child1.getTupleDesc().numFields();
+        int t2NumFields = child2.getTupleDesc().numFields();
+        for (int i = 0; i < t1NumFields; i++) {
+            result.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2NumFields; i++) {
+            result.setField(t1NumFields + i, t2.getField(i));
+        }
+        return result;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        super.setChildren(children);
+        this.residual = residualPredicates(child2);
+    }
+}
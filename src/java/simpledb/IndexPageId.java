@@ -0,0 +1,74 @@
+package simpledb;
+
+/** Unique identifier for the pages of an IndexFile. */
+public class IndexPageId implements PageId {
+
+    int tableId;
+    int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific index file.
+     *
+     * @param tableId The id of the index file that is being referenced
+     * @param pgNo The page number in that index file.
+     */
+    public IndexPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the id of the index file associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the index file getTableId() associated
+     *   with this PageId
+     */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    /**
+     * @return a hash code for this page, represented by the concatenation of
+     *   the table number and the page number
+     * @see BufferPool
+     */
+    public int hashCode() {
+        return tableId + pgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against (must be a PageId)
+     * @return true if the objects are equal (e.g., page numbers and table
+     *   ids are the same)
+     */
+    public boolean equals(Object o) {
+        if (o instanceof IndexPageId) {
+            IndexPageId other = (IndexPageId) o;
+            return this.pgNo == other.pgNo && this.tableId == other.tableId;
+        }
+        return false;
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.
+     */
+    public int[] serialize() {
+        int data[] = new int[2];
+
+        data[0] = getTableId();
+        data[1] = pageNumber();
+
+        return data;
+    }
+
+    public String toString() {
+        return "index id: " + tableId + "\tpage no: " + pgNo;
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The page handling shared by the index files, BTreeFile and
+ * HashIndexFile: taking the locks of a descent and giving back the ones
+ * that are not needed any more, and marking the pages an insert changes
+ * as dirty.
+ */
+class IndexPages {
+
+    private IndexPages() {
+    }
+
+    /**
+     * Fetches a page with the specified permissions, noting in held if tid
+     * held a lock on it before.
+     */
+    static Page lock(TransactionId tid, PageId pid, Permissions perm, Set<PageId> held)
+            throws TransactionAbortedException, DbException {
+        if (Database.getBufferPool().holdsLock(tid, pid)) {
+            held.add(pid);
+        }
+        return Database.getBufferPool().getPage(tid, pid, perm);
+    }
+
+    /**
+     * Releases the lock tid took on a page with lock, unless it held it
+     * before or changed the page since.
+     */
+    static void unlock(TransactionId tid, Page page, Set<PageId> held) {
+        if (!held.contains(page.getId()) && page.isDirty() == null) {
+            Database.getBufferPool().releasePage(tid, page.getId());
+        }
+    }
+
+    /**
+     * Marks a page that was just modified as dirty, and adds it to
+     * dirtied. It must be called before any other page is fetched: a
+     * modified page that still looks clean could be evicted by the
+     * BufferPool and its changes lost.
+     */
+    static void dirtied(TransactionId tid, Page page, ArrayList<Page> dirtied) {
+        page.markDirty(true, tid);
+        dirtied.add(page);
+    }
+}
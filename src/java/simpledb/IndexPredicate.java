@@ -0,0 +1,60 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * IndexPredicate compares the key field of an index against a constant. It
+ * is the form of predicate that an {@link IndexFile} can evaluate directly,
+ * i.e. <tt>key op constant</tt>.
+ */
+public class IndexPredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private Predicate.Op op;
+    private Field fieldvalue;
+
+    /**
+     * Constructor.
+     *
+     * @param op
+     *            the operation to apply (as defined in Predicate.Op)
+     * @param fvalue
+     *            the value that the key field is compared against
+     */
+    public IndexPredicate(Predicate.Op op, Field fvalue) {
+        this.op = op;
+        this.fieldvalue = fvalue;
+    }
+
+    public Field getField() {
+        return fieldvalue;
+    }
+
+    public Predicate.Op getOp() {
+        return op;
+    }
+
+    /**
+     * @return true if the specified key satisfies this predicate, i.e.
+     *         <tt>key op getField()</tt> holds.
+     */
+    public boolean matches(Field key) {
+        return key.compare(op, fieldvalue);
+    }
+
+    public boolean equals(Object o) {
+        if (o instanceof IndexPredicate) {
+            IndexPredicate other = (IndexPredicate) o;
+            return op == other.op && fieldvalue.equals(other.fieldvalue);
+        }
+        return false;
+    }
+
+    public int hashCode() {
+        return fieldvalue.hashCode() * 31 + op.hashCode();
+    }
+
+    public String toString() {
+        return "key " + op.toString() + " " + fieldvalue.toString();
+    }
+}
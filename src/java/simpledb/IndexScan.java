@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that returns the tuples of a table whose
+ * key field satisfies a predicate of the form <tt>key op constant</tt>, by
+ * looking them up in an index of the table instead of reading every page.
+ * Like SeqScan, the returned tuples have field names prefixed with the
+ * table alias.
+ *
+ * @see IndexFile
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+    private TransactionId tid;
+    private IndexFile index;
+    private IndexPredicate ipred;
+    private String tableAlias;
+    private String tablename;
+    private DbFileIterator dbItr;
+    private TupleDesc myTd;
+
+    /**
+     * Creates an index scan over the base table of the specified index as a
+     * part of the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read; its operator must be supported by index
+     * @param ipred
+     *            the predicate on the key field of the index
+     * @param tableAlias
+     *            the alias of the base table; the returned tupleDesc has
+     *            fields with name tableAlias.fieldName
+     */
+    public IndexScan(TransactionId tid, IndexFile index, IndexPredicate ipred,
+            String tableAlias) {
+        this.tid = tid;
+        this.index = index;
+        this.ipred = ipred;
+        this.tableAlias = tableAlias;
+        this.tablename = Database.getCatalog().getTableName(index.getTableId());
+        this.dbItr = index.indexIterator(tid, ipred);
+        TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+        String[] newNames = new String[td.numFields()];
+        Type[] newTypes = new Type[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            newNames[i] = tableAlias + "." + td.getFieldName(i);
+            newTypes[i] = td.getFieldType(i);
+        }
+        myTd = new TupleDesc(newTypes, newNames);
+    }
+
+    /**
+     * @return the name of the base table in the catalog
+     */
+    public String getTableName() {
+        return tablename;
+    }
+
+    /**
+     * @return the alias of the base table
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    public IndexFile getIndex() {
+        return index;
+    }
+
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /**
+     * @return the name of the key field, prefixed with the table alias
+     */
+    public String getKeyFieldName() {
+        return myTd.getFieldName(index.getKeyField());
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        dbItr.open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return myTd;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        return dbItr.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return dbItr.next();
+    }
+
+    public void close() {
+        dbItr.close();
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        dbItr.rewind();
+    }
+}
@@ -13,6 +13,10 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** The statistics passed to {@link #orderJoins}, by base table name */
+    HashMap<String, TableStats> stats;
+    /** Whether joins may probe indexes; not for snapshot transactions */
+    boolean indexJoins = true;
 
     /**
      * Constructor
@@ -68,12 +72,67 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
+        if (lj.indexJoin && !(lj instanceof LogicalSubplanJoinNode)) {
+            j = instantiateIndexJoin(p, plan1, plan2);
+            if (j != null)
+                return j;
+        }
+
         j = new HashEquiJoin(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * Return an IndexNestedLoopJoin that probes an index of the table scanned
+     * by plan2, or null if plan2 is not a (filtered) scan of a table with an
+     * index on the join field that supports the join predicate, or if it
+     * reads a snapshot, which the index may not agree with.
+     */
+    private static DbIterator instantiateIndexJoin(JoinPredicate p,
+            DbIterator plan1, DbIterator plan2) {
+        DbIterator leaf = plan2;
+        while (leaf instanceof Filter)
+            leaf = ((Filter) leaf).getChildren()[0];
+
+        TransactionId tid;
+        int tableid;
+        if (leaf instanceof SeqScan) {
+            SeqScan s = (SeqScan) leaf;
+            tid = s.getTransactionId();
+            tableid = Database.getCatalog().getTableId(s.getTableName());
+        } else if (leaf instanceof IndexScan) {
+            IndexScan s = (IndexScan) leaf;
+            tid = s.getTransactionId();
+            tableid = s.getIndex().getTableId();
+        } else {
+            return null;
+        }
+
+        if (Database.getBufferPool().readsSnapshot(tid))
+            return null;
+        IndexFile index = bestIndex(tableid, p.getField2(),
+                IndexNestedLoopJoin.probeOp(p.getOperator()));
+        if (index == null)
+            return null;
+        return new IndexNestedLoopJoin(p, plan1, plan2, index, tid);
+    }
+
+    /**
+     * Return the index of the table on the specified field that can evaluate
+     * op with the fewest page reads per probe, or null if there is none.
+     */
+    private static IndexFile bestIndex(int tableid, int field, Predicate.Op op) {
+        IndexFile best = null;
+        for (IndexFile index : Database.getCatalog().getIndexes(tableid)) {
+            if (index.getKeyField() == field && index.supports(op)
+                    && (best == null || index.pagesPerProbe() < best.pagesPerProbe()))
+                best = index;
+        }
+        return best;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,16 +161,86 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)}, considering an index nested-loop join if
+     * the right-hand side is a base table.
+     * 
+     * @param innerIsBaseTable
+     *            true if the right-hand side of the join is the base table
+     *            j.t2Alias rather than the result of other joins
+     * @return the cheaper of the cost of scanning the right-hand side and,
+     *         if possible, of probing an index of it for each left-hand tuple
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsBaseTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 4.
             return card1 + cost1 + cost2;
         } else {
         	// cost2 * card1 represents the cost of scanning in a nested loop join
-            return card1 + cost1 + card2 + (cost2 * card1);
+            double cost = card1 + cost1 + card2 + (cost2 * card1);
+            if (innerIsBaseTable)
+                cost = Math.min(cost, estimateIndexJoinCost(j, card1, cost1));
+            return cost;
         }
     }
 
+    /**
+     * Estimate the cost of an index nested-loop join, which reads the
+     * left-hand side once and probes an index of the base table j.t2Alias
+     * for each of its tuples. Every probe costs an index scan returning the
+     * expected number of matches of one left-hand tuple, so the filters
+     * over the right-hand table do not make the probes any cheaper.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param cost1
+     *            Estimated cost of the left-hand side of the query
+     * @return An estimate of the cost of the index join, or
+     *         Double.MAX_VALUE if j.t2Alias has no index on the join field
+     *         that supports the join predicate
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1) {
+        if (!indexJoins || j instanceof LogicalSubplanJoinNode)
+            return Double.MAX_VALUE;
+        Integer tableid = p.getTableId(j.t2Alias);
+        if (tableid == null)
+            return Double.MAX_VALUE;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableid)
+                    .fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.MAX_VALUE;
+        }
+        IndexFile index = bestIndex(tableid, field,
+                IndexNestedLoopJoin.probeOp(j.p));
+        String tableName = Database.getCatalog().getTableName(tableid);
+        TableStats s = stats != null ? stats.get(tableName)
+                : TableStats.getTableStats(tableName);
+        if (index == null || s == null)
+            return Double.MAX_VALUE;
+
+        int tableCard = Math.max(s.totalTuples(), 1);
+        card1 = Math.max(card1, 1);
+        double matchesPerProbe = (double) estimateTableJoinCardinality(j.p,
+                j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, card1,
+                tableCard, isPkey(j.t1Alias, j.f1PureName),
+                isPkey(j.t2Alias, j.f2PureName), stats,
+                p.getTableAliasToIdMapping()) / card1;
+        double probeCost = s.estimateIndexScanCost(index,
+                Math.min(matchesPerProbe / tableCard, 1.0));
+        return cost1 + card1 * (1 + probeCost);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -239,6 +368,7 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+    	this.stats = stats;
     	PlanCache pc = new PlanCache();
     	for (int i = 1; i <= joins.size(); i++) {
     		Set<Set<LogicalJoinNode>> joinEnum = enumerateSubsets(joins, i);
@@ -325,6 +455,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // an index join is only possible if its inner side is a base table
+        boolean t1IsBase = true, t2IsBase = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -360,6 +492,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1IsBase = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -376,6 +509,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2IsBase = false;
 
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
@@ -390,10 +524,13 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t2IsBase);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t1IsBase);
+        int outerCard = t1card;
+        double outerCost = t1cost;
+        boolean innerIsBase = t2IsBase;
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -401,10 +538,20 @@ public class JoinOptimizer {
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            outerCard = t2card;
+            outerCost = t2cost;
+            innerIsBase = t1IsBase;
         }
         if (cost1 >= bestCostSoFar)
             return null;
 
+        if (innerIsBase && estimateIndexJoinCost(j, outerCard, outerCost) <= cost1) {
+            // j may be shared with other subplans, so mark a copy
+            j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName,
+                    j.f2PureName, j.p);
+            j.indexJoin = true;
+        }
+
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
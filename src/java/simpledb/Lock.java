@@ -1,6 +1,390 @@
 package simpledb;
 
-public interface Lock {
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
-	public boolean heldByTransaction(TransactionId tid);
+/**
+ * A lock on a table, a page or a row, and the transactions that hold it,
+ * each in one mode.
+ * <p>
+ * A transaction that holds nothing else on it can take the lock in IS, IX
+ * or S without the latch of its shard of the lock table (see LockManager),
+ * with a compare-and-set of a word that counts the holders of each of these
+ * modes, if no holder in another mode conflicts with it; and in X, if
+ * nobody else holds it. A transaction that takes the lock another way, or
+ * waits for it, closes this fast path for the modes it conflicts with, and
+ * the others take the latch until it is gone. The other fields are guarded
+ * by the latch.
+ * <p>
+ * The transactions that wait for the lock are queued, and a transaction is
+ * granted the lock only once the holders and the transactions ahead of it
+ * in the queue allow it, so that a stream of readers cannot keep a writer
+ * waiting for ever. A transaction that holds the lock already and wants it
+ * in a stronger mode goes ahead of those that do not hold it, as the
+ * holders it waits for may be waiting for it to finish.
+ */
+public class Lock {
+
+	/**
+	 * The modes of a lock. Rows are locked S or X; before that, the page
+	 * and the table of the row are locked with the intention modes IS or IX,
+	 * so that a transaction that locks a whole page or table can see that
+	 * rows of it are locked. SIX is held by a transaction that read a whole
+	 * page and writes rows of it.
+	 */
+	public enum Mode {
+		IS, IX, S, SIX, X;
+
+		/** Whether two transactions can hold the modes at once */
+		private static final boolean[][] COMPATIBLE = {
+			//          IS     IX     S      SIX    X
+			/* IS  */ { true,  true,  true,  true,  false },
+			/* IX  */ { true,  true,  false, false, false },
+			/* S   */ { true,  false, true,  false, false },
+			/* SIX */ { true,  false, false, false, false },
+			/* X   */ { false, false, false, false, false },
+		};
+
+		/** Whether the first mode allows all that the second does */
+		private static final boolean[][] COVERS = {
+			//          IS     IX     S      SIX    X
+			/* IS  */ { true,  false, false, false, false },
+			/* IX  */ { true,  true,  false, false, false },
+			/* S   */ { true,  false, true,  false, false },
+			/* SIX */ { true,  true,  true,  true,  false },
+			/* X   */ { true,  true,  true,  true,  true  },
+		};
+
+		/**
+		 * @return true if another transaction can hold the specified mode
+		 *         while one holds this one
+		 */
+		public boolean isCompatibleWith(Mode other) {
+			return COMPATIBLE[ordinal()][other.ordinal()];
+		}
+
+		/**
+		 * @return true if this mode allows all that the specified one does
+		 */
+		public boolean covers(Mode other) {
+			return COVERS[ordinal()][other.ordinal()];
+		}
+
+		/**
+		 * @return the weakest mode that allows all that this mode and the
+		 *         specified one do
+		 */
+		public Mode join(Mode other) {
+			if (other == null || covers(other)) {
+				return this;
+			}
+			if (other.covers(this)) {
+				return other;
+			}
+			// S and IX
+			return SIX;
+		}
+
+		/**
+		 * @return true if the lock can be taken in this mode on the fast path
+		 */
+		public boolean isFast() {
+			return this != SIX;
+		}
+
+		/**
+		 * @return the mode in which the page or table of a row is locked
+		 *         before the row is locked in this mode
+		 */
+		public Mode intention() {
+			return this == S || this == IS ? IS : IX;
+		}
+	}
+
+	/** The fast path modes */
+	private static final Mode[] FAST_MODES = { Mode.IS, Mode.IX, Mode.S, Mode.X };
+	/** The fast path modes that can be shared, whose holders are counted */
+	private static final Mode[] SHARED_MODES = { Mode.IS, Mode.IX, Mode.S };
+	/** The bits of the count of fast path holders of each shared mode */
+	private static final int COUNT_BITS = 19;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	/** Closes the fast path for a shared mode, shifted by its ordinal */
+	private static final long CLOSED = 1L << (3 * COUNT_BITS);
+	private static final long CLOSED_ALL = CLOSED * 7;
+	/** Set while the lock has holders or waiters off the fast path */
+	private static final long SLOW = CLOSED << 3;
+	/** Set once the lock is dropped from the lock table; it cannot be
+	    taken any more */
+	private static final long DEAD = SLOW << 1;
+	/** Set while a transaction holds the lock in X on the fast path */
+	private static final long FAST_X = DEAD << 1;
+
+	/** The counts of fast path holders, and the flags above */
+	private volatile long state;
+	private static final AtomicLongFieldUpdater<Lock> STATE =
+			AtomicLongFieldUpdater.newUpdater(Lock.class, "state");
+	/** A transaction waiting for the lock, and the mode it wants */
+	private static class Request {
+		final TransactionId tid;
+		final Mode mode;
+		/** Whether the transaction holds the lock already */
+		final boolean upgrade;
+
+		Request(TransactionId tid, Mode mode, boolean upgrade) {
+			this.tid = tid;
+			this.mode = mode;
+			this.upgrade = upgrade;
+		}
+	}
+
+	/** The holders that took the lock off the fast path, and the queue of
+	    transactions waiting for the lock, upgrades first; made when first
+	    needed, as most locks are only taken on the fast path */
+	private Map<TransactionId, Mode> holders;
+	private LinkedList<Request> queue;
+
+	private static long unit(Mode mode) {
+		return mode == Mode.X ? FAST_X : 1L << (COUNT_BITS * mode.ordinal());
+	}
+
+	private static long count(long s, Mode mode) {
+		if (mode == Mode.X) {
+			return (s & FAST_X) != 0 ? 1 : 0;
+		}
+		return (s >>> (COUNT_BITS * mode.ordinal())) & COUNT_MASK;
+	}
+
+	/**
+	 * Takes the lock in a fast path mode, without the latch, if it is open
+	 * for the mode and no fast path holder conflicts.
+	 * @return true if it was taken
+	 */
+	public boolean tryFast(Mode mode) {
+		// X conflicts with all holders, the slow ones too
+		long closed = mode == Mode.X ? SLOW : CLOSED << mode.ordinal();
+		while (true) {
+			long s = state;
+			if ((s & (DEAD | closed)) != 0) {
+				return false;
+			}
+			for (Mode m : FAST_MODES) {
+				if (count(s, m) > 0 && !mode.isCompatibleWith(m)) {
+					return false;
+				}
+			}
+			if (STATE.compareAndSet(this, s, s + unit(mode))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Releases a hold taken on the fast path, without the latch.
+	 * @return true if a transaction waits for the lock, or may: the caller
+	 *         takes the latch to wake it up
+	 */
+	public boolean releaseFast(Mode mode) {
+		return (STATE.addAndGet(this, -unit(mode)) & (CLOSED_ALL | SLOW)) != 0;
+	}
+
+	/**
+	 * Marks the lock dropped from the lock table, if nobody holds it or
+	 * waits for it.
+	 * @return true if it was
+	 */
+	public boolean retire() {
+		return STATE.compareAndSet(this, 0, DEAD);
+	}
+
+	/**
+	 * @return true if the lock was dropped from the lock table
+	 */
+	public boolean isDead() {
+		return (state & DEAD) != 0;
+	}
+
+	private void offFastPath() {
+		if (holders == null) {
+			holders = new HashMap<TransactionId, Mode>(4);
+			queue = new LinkedList<Request>();
+		}
+	}
+
+	/**
+	 * Closes the fast path for the modes that conflict with a holder or a
+	 * waiter off the fast path, and opens it for the others. Called with
+	 * the latch, whenever they change.
+	 * @return false if the lock is dead
+	 */
+	public boolean sync() {
+		offFastPath();
+		long flags = flags();
+		while (true) {
+			long s = state;
+			if ((s & DEAD) != 0) {
+				return false;
+			}
+			if (STATE.compareAndSet(this, s, (s & ~(CLOSED_ALL | SLOW)) | flags)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the flags that close the fast path for the modes that
+	 *         conflict with a holder or a waiter off the fast path
+	 */
+	private long flags() {
+		long flags = holders.isEmpty() && queue.isEmpty() ? 0 : SLOW;
+		for (Mode m : SHARED_MODES) {
+			for (Mode h : holders.values()) {
+				if (!m.isCompatibleWith(h)) {
+					flags |= CLOSED << m.ordinal();
+				}
+			}
+			for (Request r : queue) {
+				if (!m.isCompatibleWith(r.mode)) {
+					flags |= CLOSED << m.ordinal();
+				}
+			}
+		}
+		return flags;
+	}
+
+	/**
+	 * @return the mode in which the specified transaction holds this lock
+	 *         off the fast path, or null
+	 */
+	public Mode heldBy(TransactionId tid) {
+		return holders == null ? null : holders.get(tid);
+	}
+
+	/**
+	 * @param tid the specified transaction to compare
+	 * @return true if the transaction has a hold on this lock off the fast
+	 *         path, false otherwise
+	 */
+	public boolean heldByTransaction(TransactionId tid) {
+		return holders != null && holders.containsKey(tid);
+	}
+
+	/**
+	 * @param fast whether tid holds the lock on the fast path
+	 * @return true if a transaction other than tid holds this lock
+	 */
+	public boolean heldByOthers(TransactionId tid, boolean fast) {
+		long s = state;
+		long holds = 0;
+		for (Mode m : FAST_MODES) {
+			holds += count(s, m);
+		}
+		return holds > (fast ? 1 : 0)
+				|| (holders != null && holders.size() > (holders.containsKey(tid) ? 1 : 0));
+	}
+
+	/**
+	 * @param own the mode in which tid holds the lock on the fast path, or
+	 *            null
+	 * @return true if the specified transaction, which is in the queue, can
+	 *         hold this lock in the specified mode, on top of the one it
+	 *         holds it in: the holders allow it, and the transactions ahead
+	 *         of it in the queue want modes it can hold the lock with
+	 */
+	public boolean canGrant(TransactionId tid, Mode mode, Mode own) {
+		Mode wanted = mode.join(holders.get(tid)).join(own);
+		for (Request r : queue) {
+			if (r.tid.equals(tid)) {
+				break;
+			}
+			if (!wanted.isCompatibleWith(r.mode)) {
+				return false;
+			}
+		}
+		for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+			if (!e.getKey().equals(tid) && !wanted.isCompatibleWith(e.getValue())) {
+				return false;
+			}
+		}
+		long s = state;
+		for (Mode m : FAST_MODES) {
+			if (count(s, m) > (m == own ? 1 : 0) && !wanted.isCompatibleWith(m)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lets the specified transaction hold this lock in the specified mode,
+	 * off the fast path, on top of the one it holds it in; a hold it took on
+	 * the fast path moves off it.
+	 *
+	 * @param own the mode in which tid holds the lock on the fast path, or
+	 *            null
+	 */
+	public void grant(TransactionId tid, Mode mode, Mode own) {
+		holders.put(tid, mode.join(holders.get(tid)).join(own));
+		if (own != null) {
+			// the hold on the fast path kept out the modes that conflict
+			// with it; close the fast path for them as it goes, not after
+			long flags = flags();
+			while (true) {
+				long s = state;
+				if (STATE.compareAndSet(this, s, ((s - unit(own)) & ~(CLOSED_ALL | SLOW)) | flags)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Releases the hold of the specified transaction on this lock, off the
+	 * fast path.
+	 */
+	public void release(TransactionId tid) {
+		holders.remove(tid);
+	}
+
+	/**
+	 * Queues the specified transaction for this lock: behind the others if
+	 * it does not hold the lock, and behind the other upgrades only if it
+	 * does.
+	 *
+	 * @param own the mode in which tid holds the lock on the fast path, or
+	 *            null
+	 */
+	public void enqueue(TransactionId tid, Mode mode, Mode own) {
+		offFastPath();
+		boolean upgrade = own != null || holders.containsKey(tid);
+		Request request = new Request(tid, mode, upgrade);
+		if (!upgrade) {
+			queue.addLast(request);
+			return;
+		}
+		ListIterator<Request> it = queue.listIterator();
+		while (it.hasNext()) {
+			if (!it.next().upgrade) {
+				it.previous();
+				break;
+			}
+		}
+		it.add(request);
+	}
+
+	/**
+	 * Takes the specified transaction out of the queue.
+	 * @return true if other transactions are still queued
+	 */
+	public boolean dequeue(TransactionId tid) {
+		for (ListIterator<Request> it = queue.listIterator(); it.hasNext(); ) {
+			if (it.next().tid.equals(tid)) {
+				it.remove();
+				break;
+			}
+		}
+		return !queue.isEmpty();
+	}
 }
@@ -1,146 +1,373 @@
 package simpledb;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * LockManager locks tables, pages and rows for transactions. They form a
+ * hierarchy: a transaction that locks a page locks its table with an
+ * intention mode first, and one that locks a row locks its page and its
+ * table with an intention mode first (see Lock.Mode), so that writers of
+ * different rows of a page do not wait for each other, while a transaction
+ * that reads the whole page waits for them.
+ * <p>
+ * The lock table is split into SHARDS shards by the hash of what is locked,
+ * each with its own latch, so that transactions locking different things
+ * do not wait for the same latch. Uncontended locks, in any mode but SIX,
+ * do not take the latch at all (see Lock).
+ * <p>
+ * A transaction that locks more than ESCALATION_THRESHOLD rows of a page
+ * locks the whole page instead, if no other transaction has rows of it
+ * locked, so that it does not keep a lock for every row of the pages it
+ * changes a lot of.
+ * <p>
+ * Transactions that wait for a lock are granted it in the order they
+ * asked for it, except that those upgrading a lock they hold go first
+ * (see Lock). A transaction that waits for a lock for more than
+ * DEADLOCK_TIMEOUT milliseconds is assumed to be deadlocked, and is
+ * aborted.
+ */
 public class LockManager {
-	
-	private Map<PageId, Lock> locks;
-	private Map<TransactionId, Set<PageId>> transactions;
-	private final int DEADLOCK_TIMEOUT = 1000;
-	
+
+	private static final int DEADLOCK_TIMEOUT = 1000;
+	/** How many rows of a page a transaction locks before it tries to lock
+	    the page instead */
+	static final int ESCALATION_THRESHOLD = 32;
+	/** How many shards the lock table is split into; a power of two */
+	static final int SHARDS = 64;
+
+	/**
+	 * A shard of the lock table: the locks on the things whose hash falls in
+	 * it, by what they lock (an Integer table id, a PageId or a RecordId).
+	 * The shard is the latch of its locks; waiters wait on it.
+	 */
+	private static class Shard {
+		final ConcurrentHashMap<Object, Lock> locks = new ConcurrentHashMap<Object, Lock>();
+	}
+
+	/**
+	 * The locks one transaction holds. Only the thread running the
+	 * transaction changes them, so they need no latch; but other threads
+	 * may read which locks it took on the fast path (see lockedByOthers).
+	 */
+	private static class Holdings {
+		/** What it holds locks on, and in what mode */
+		final Map<Object, Lock.Mode> modes = new HashMap<Object, Lock.Mode>();
+		/** Those of them it took on the fast path */
+		final Set<Object> fast = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+		/** The rows it holds locks on, by page */
+		final Map<PageId, Set<RecordId>> rows = new HashMap<PageId, Set<RecordId>>();
+	}
+
+	private final Shard[] shards;
+	private final ConcurrentHashMap<TransactionId, Holdings> transactions;
+
 	public LockManager() {
-		locks = new HashMap<PageId, Lock>();
-		transactions = new HashMap<TransactionId, Set<PageId>>();
+		shards = new Shard[SHARDS];
+		for (int i = 0; i < SHARDS; i++) {
+			shards[i] = new Shard();
+		}
+		transactions = new ConcurrentHashMap<TransactionId, Holdings>();
 	}
-	
+
 	/**
-	 * Acquires a lock for the current transaction and page. If a lock on the page
-	 * is already held by another transaction, this method will block until the 
-	 * lock on that page has been released.
+	 * Mixes the bits of the hash of a name, so that the pages of a table and
+	 * the rows of a page spread over the shards.
+	 */
+	private Shard shardOf(Object name) {
+		int h = name.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return shards[h & (SHARDS - 1)];
+	}
+
+	private Holdings holdingsOf(TransactionId tid) {
+		Holdings h = transactions.get(tid);
+		if (h == null) {
+			h = new Holdings();
+			Holdings other = transactions.putIfAbsent(tid, h);
+			if (other != null) {
+				h = other;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Acquires a lock on a page for the specified transaction, shared if it
+	 * only reads the page and exclusive otherwise, after locking the table
+	 * of the page with the matching intention mode. Blocks until the locks
+	 * other transactions hold allow it.
 	 * @param tid
 	 * @param pid
-	 * @throws TransactionAbortedException 
+	 * @throws TransactionAbortedException if it waited too long, because of
+	 *         a deadlock
+	 */
+	public void getLock(TransactionId tid, PageId pid, Permissions perm)
+			throws TransactionAbortedException {
+		Lock.Mode mode = perm == Permissions.READ_ONLY ? Lock.Mode.S : Lock.Mode.X;
+		Holdings h = holdingsOf(tid);
+		acquire(tid, h, pid.getTableId(), mode.intention(), true);
+		acquire(tid, h, pid, mode, true);
+	}
+
+	/**
+	 * Acquires a lock on a row for the specified transaction, shared if it
+	 * only reads the row and exclusive otherwise, after locking the page and
+	 * the table of the row with the matching intention mode; nothing is
+	 * locked if the transaction holds a lock on the page that covers the
+	 * row already. Blocks until the locks other transactions hold allow it.
+	 * @throws TransactionAbortedException if it waited too long, because of
+	 *         a deadlock
+	 */
+	public void getLock(TransactionId tid, RecordId rid, Permissions perm)
+			throws TransactionAbortedException {
+		Lock.Mode mode = perm == Permissions.READ_ONLY ? Lock.Mode.S : Lock.Mode.X;
+		PageId pid = rid.getPageId();
+		Holdings h = holdingsOf(tid);
+		if (coversRows(h.modes.get(pid), mode)) {
+			return;
+		}
+		acquire(tid, h, pid.getTableId(), mode.intention(), true);
+		acquire(tid, h, pid, mode.intention(), true);
+		acquire(tid, h, rid, mode, true);
+		Set<RecordId> pageRows = h.rows.get(pid);
+		if (pageRows == null) {
+			pageRows = new HashSet<RecordId>();
+			h.rows.put(pid, pageRows);
+		}
+		pageRows.add(rid);
+		if (pageRows.size() > ESCALATION_THRESHOLD) {
+			escalate(tid, h, pid, pageRows);
+		}
+	}
+
+	/**
+	 * @return true if a transaction that holds a page in the specified mode
+	 *         can access all its rows in the other one without locking them
+	 */
+	private static boolean coversRows(Lock.Mode page, Lock.Mode row) {
+		if (page == null) {
+			return false;
+		}
+		return page == Lock.Mode.X
+				|| (row == Lock.Mode.S && page.covers(Lock.Mode.S));
+	}
+
+	/**
+	 * Replaces the row locks tid holds on a page with a lock on the page, if
+	 * no other transaction holds locks that keep it from locking the page.
+	 * It does not wait for them: a transaction that waits for a lock while
+	 * holding locks on rows of the same page deadlocks easily.
+	 */
+	private void escalate(TransactionId tid, Holdings h, PageId pid, Set<RecordId> pageRows) {
+		Lock.Mode mode = Lock.Mode.S;
+		for (RecordId rid : pageRows) {
+			if (h.modes.get(rid) == Lock.Mode.X) {
+				mode = Lock.Mode.X;
+				break;
+			}
+		}
+		// the table is locked in the intention mode already
+		boolean escalated;
+		try {
+			escalated = acquire(tid, h, pid, mode, false);
+		} catch (TransactionAbortedException e) {
+			// only thrown when waiting
+			escalated = false;
+		}
+		if (!escalated) {
+			return;
+		}
+		h.rows.remove(pid);
+		for (RecordId rid : pageRows) {
+			release(tid, h, rid);
+		}
+	}
+
+	/**
+	 * Lets tid hold the lock on the specified table, page or row in the
+	 * specified mode, on top of the one it holds it in, once the other
+	 * holders allow it.
+	 *
+	 * @param wait whether to wait for the other holders, or give up
+	 * @return true if tid holds the lock
+	 * @throws TransactionAbortedException if it waited too long
 	 */
-	public void getLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-		System.out.println("---------------------------------");
-		System.out.println("Started to acquire the lock");
-		System.out.println("It has permissions: " + perm);
-		if (locks.containsKey(pid)) {
-			System.out.println("\tThere was already a lock on this page");
-			Lock l = locks.get(pid);
-			if (l instanceof SharedLock) {
-				System.out.println("\t\tThe lock is a shared lock");
-				SharedLock sl = (SharedLock) l;
-				if (perm == Permissions.READ_ONLY) {
-					if (!l.heldByTransaction(tid)) {
-						sl.incrementCount(tid);
+	private boolean acquire(TransactionId tid, Holdings h, Object name, Lock.Mode mode, boolean wait)
+			throws TransactionAbortedException {
+		Lock.Mode held = h.modes.get(name);
+		if (held != null && held.covers(mode)) {
+			return true;
+		}
+		Shard shard = shardOf(name);
+		if (held == null && mode.isFast()) {
+			Lock l = shard.locks.get(name);
+			if (l == null) {
+				l = new Lock();
+				Lock other = shard.locks.putIfAbsent(name, l);
+				if (other != null) {
+					l = other;
+				}
+			}
+			if (l.tryFast(mode)) {
+				h.fast.add(name);
+				h.modes.put(name, mode);
+				return true;
+			}
+		}
+		Lock.Mode own = h.fast.contains(name) ? held : null;
+		synchronized (shard) {
+			Lock l;
+			while (true) {
+				l = shard.locks.get(name);
+				if (l == null) {
+					// the fast path adds locks without the latch
+					l = new Lock();
+					Lock other = shard.locks.putIfAbsent(name, l);
+					if (other != null) {
+						continue;
 					}
-				} else {
-					block(sl, tid);
-					ExclusiveLock el = new ExclusiveLock(pid, tid);
-					locks.put(pid, el);
+				} else if (l.isDead()) {
+					shard.locks.remove(name, l);
+					continue;
 				}
-			} else if (l instanceof ExclusiveLock){
-				System.out.println("\t\tThe lock is an exclusive lock");
-				if (!l.heldByTransaction(tid)) {
-					ExclusiveLock el = (ExclusiveLock) l;
-					block(el);
+				// waiting closes the fast path for the conflicting modes,
+				// so that the holders that conflict only go away
+				l.enqueue(tid, mode, own);
+				if (l.sync()) {
+					break;
 				}
+				l.dequeue(tid);
 			}
-		} else {
-			System.out.println("\tThere was no prior lock on this page");
-			// Add this page to the current set for this transactions
-			if (transactions.containsKey(tid)) {
-				transactions.get(tid).add(pid);
-			} else {
-				Set<PageId> ps = new HashSet<PageId>();
-				ps.add(pid);
-				transactions.put(tid, ps);
+			try {
+				long deadline = System.currentTimeMillis() + DEADLOCK_TIMEOUT;
+				while (!l.canGrant(tid, mode, own)) {
+					long left = deadline - System.currentTimeMillis();
+					if (!wait) {
+						return false;
+					}
+					if (left <= 0) {
+						throw new TransactionAbortedException();
+					}
+					try {
+						shard.wait(left);
+					} catch (InterruptedException e) {
+						throw new TransactionAbortedException();
+					}
+				}
+				l.grant(tid, mode, own);
+			} finally {
+				// those behind tid in the queue may go ahead now
+				if (l.dequeue(tid)) {
+					shard.notifyAll();
+				}
+				l.sync();
+				if (l.retire()) {
+					shard.locks.remove(name, l);
+				}
 			}
-			// Create a new lock on the page
-			if (perm == Permissions.READ_ONLY) {
-				System.out.println("\t\tI just created a shared lock");
-				SharedLock sl = new SharedLock(pid);
-				sl.incrementCount(tid);
-				locks.put(pid, sl);
-			} else {
-				System.out.println("\t\tI just created an exclusive lock");
-				ExclusiveLock el = new ExclusiveLock(pid, tid);
-				locks.put(pid, el);
+		}
+		h.fast.remove(name);
+		h.modes.put(name, mode.join(held));
+		return true;
+	}
+
+	/**
+	 * Releases the lock tid holds on the specified table, page or row.
+	 */
+	private void release(TransactionId tid, Holdings h, Object name) {
+		release(tid, name, h.modes.remove(name), h.fast.remove(name));
+	}
+
+	/**
+	 * Releases the lock tid holds on the specified table, page or row in
+	 * the specified mode, on the fast path or not.
+	 */
+	private void release(TransactionId tid, Object name, Lock.Mode mode, boolean fast) {
+		Shard shard = shardOf(name);
+		if (fast) {
+			// the lock is not dropped from the table while tid holds it
+			Lock l = shard.locks.get(name);
+			if (l.releaseFast(mode)) {
+				synchronized (shard) {
+					shard.notifyAll();
+				}
+			} else if (l.retire()) {
+				shard.locks.remove(name, l);
 			}
+			return;
+		}
+		synchronized (shard) {
+			Lock l = shard.locks.get(name);
+			l.release(tid);
+			l.sync();
+			if (l.retire()) {
+				shard.locks.remove(name, l);
+			}
+			shard.notifyAll();
 		}
-		System.out.println("\t\t\tIt has permissions: " + perm);
-		System.out.println("\t\t\t\tIt has " + pid);
-		System.out.println("---------------------------------");
 	}
-	
+
+	/**
+	 * Releases the lock the specified transaction holds on a page, but not
+	 * the ones it holds on rows of the page.
+	 * @throws IllegalArgumentException if it does not hold it
+	 */
 	public void releaseLock(TransactionId tid, PageId pid) {
-		if (!locks.containsKey(pid)) {
-			throw new IllegalArgumentException("This page with pid: " + pid.toString() +
-					"does not currently have a lock on it");
-		}
-		Lock l = locks.get(pid);	
-		if (!l.heldByTransaction(tid)) {
-			throw new IllegalArgumentException("The lock on page " + pid.toString() + 
+		Holdings h = transactions.get(tid);
+		if (h == null || !h.modes.containsKey(pid)) {
+			throw new IllegalArgumentException("The lock on page " + pid.toString() +
 					" is not currently held by transaction " + tid.toString());
 		}
-		if (l instanceof SharedLock) {
-			SharedLock sl = (SharedLock) l;
-			sl.decrementCount(tid);
-			if (sl.count() == 0) {
-				locks.remove(pid);
-			}
-		} else {
-			ExclusiveLock el = (ExclusiveLock) l;
-			el.releaseLock();
-			locks.remove(pid);
-		}
+		release(tid, h, pid);
 	}
-	
+
+	/**
+	 * Releases all the locks of the specified transaction.
+	 * @return the pages it held locks on, other than those it only locked
+	 *         rows of
+	 */
 	public Set<PageId> releaseAllLocks(TransactionId tid) {
-		Set<PageId> pids = transactions.get(tid);
-		for (PageId pid: pids) {
-			this.releaseLock(tid, pid);
+		Set<PageId> pids = new HashSet<PageId>();
+		Holdings h = transactions.remove(tid);
+		if (h == null) {
+			return pids;
 		}
-		return pids;
-	}
-	
-	public boolean holdsLock(TransactionId tid, PageId pid) {
-		if (locks.containsKey(pid)) {
-			Lock l = locks.get(pid);
-			return l.heldByTransaction(tid);
-		}
-		return false;
-	}
-	
-	private void block(SharedLock sl, TransactionId tid) throws TransactionAbortedException {
-		long t0 = System.currentTimeMillis();
-		while (sl.count() > 0 && !(sl.count() == 1 && sl.heldByTransaction(tid))) {
-			waitNMillis(10);
-			if (System.currentTimeMillis() - t0 > DEADLOCK_TIMEOUT) {
-				throw new TransactionAbortedException();
+		for (Map.Entry<Object, Lock.Mode> e : h.modes.entrySet()) {
+			if (e.getKey() instanceof PageId && e.getValue().covers(Lock.Mode.S)) {
+				pids.add((PageId) e.getKey());
 			}
+			release(tid, e.getKey(), e.getValue(), h.fast.contains(e.getKey()));
 		}
+		return pids;
 	}
-	
-	private void block(ExclusiveLock el) throws TransactionAbortedException {
-		long t0 = System.currentTimeMillis();
-		while (!el.isReleased()) {
-			waitNMillis(10);
-			if (System.currentTimeMillis() - t0 > DEADLOCK_TIMEOUT) {
-				throw new TransactionAbortedException();
-			}
+
+	/**
+	 * @return true if a transaction other than tid holds a lock on the page;
+	 *         may be called on a thread other than that of tid, which may
+	 *         be taking or releasing the lock meanwhile
+	 */
+	public boolean lockedByOthers(TransactionId tid, PageId pid) {
+		Shard shard = shardOf(pid);
+		Holdings h = tid == null ? null : transactions.get(tid);
+		boolean fast = h != null && h.fast.contains(pid);
+		synchronized (shard) {
+			Lock l = shard.locks.get(pid);
+			return l != null && l.heldByOthers(tid, fast);
 		}
 	}
-	
-	private void waitNMillis(int n) {
-		long t0 = System.currentTimeMillis();
-		long t1;
-		do {
-			t1 = System.currentTimeMillis();
-		} while ((t1 - t0) > n);
+
+	/**
+	 * @return true if tid holds a lock on the page, in any mode
+	 */
+	public boolean holdsLock(TransactionId tid, PageId pid) {
+		Holdings h = transactions.get(tid);
+		return h != null && h.modes.containsKey(pid);
 	}
 }
@@ -2,7 +2,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.reflect.*;
 
 /**
@@ -32,6 +38,62 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+Those that write pages first call BufferPool.awaitWrites between the
+two, so that a page the BufferPool is writing without holding its
+monitor cannot overwrite theirs.
+
+<u> Appending: </u>
+<p>
+
+Records are not written to the log file by the transactions appending
+them.  A transaction serializes its record into a byte array, reserves
+space for it in an in-memory log buffer by advancing an atomic cursor,
+and copies the record into the buffer, without taking any monitor; the
+position the cursor hands out is the LSN of the record.  A log writer
+thread writes the buffer to the log file when a transaction needs its
+records on disk (or the buffer is full.)  Operations that read the log
+file (checkpoints, truncation, rollback and recovery) first wait for the
+buffer to be written.
+
+<u> Truncation: </u>
+<p>
+
+LSNs only grow: a record is found in the log file at its LSN minus the
+base in the header of the file, and truncation cuts the log by copying
+the records it keeps, as they are, to a new file with a larger base.  So
+the LSNs that pages, the BufferPool and the records themselves remember
+stay valid.  Appends are kept out only while the records appended during
+the copy are copied, and the new file replaces the old one.
+
+<u> Group commit: </u>
+<p>
+
+A committing transaction appends its COMMIT record and then waits for
+the log writer to force the log.  While other transactions are running,
+the log writer waits up to GROUP_COMMIT_WINDOW_MICROS for more commits
+to join, or until GROUP_COMMIT_SIZE commits are waiting, so that a
+single FileChannel.force makes all of their COMMIT records durable.  A
+transaction is released as soon as the log up to the end of its COMMIT
+record is durable.
+
+<u> Recovery: </u>
+<p>
+
+recover() works in three passes, in the manner of ARIES.  Analysis reads
+the log from the last checkpoint (or from the first record of the oldest
+transaction the checkpoint lists as running, or the oldest change of a
+page it lists as dirty) to its end, finding the transactions that
+neither committed nor aborted: the losers.  Redo repeats history for the
+pages that were dirty at the checkpoint, from their first change on, and
+for every page from the checkpoint on: the records are grouped by the
+page they change and the pages are split among REDO_THREADS workers,
+each reading its pages from their DbFile, applying their records in log
+order and writing them back.
+Undo then rolls the losers back, latest change first, writing a CLR for
+each change it undoes and finally an ABORT record for each loser, so
+that a crash during recovery does not undo anything twice.  Recovery
+reads and writes pages directly, without the BufferPool.
 */
 
 /**
@@ -39,33 +101,58 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The first long integer of the file represents the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
+<li> The second long integer of the file is the base of the file: the
+LSN of a record minus its offset in the file.  It is 0 until the log
+is truncated
+
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are nine record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, INSERT, DELETE, SLOT_UPDATE and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  They are written for
+pages other than HeapPages (index pages), when the page is flushed.
+
+<li>INSERT, DELETE and SLOT_UPDATE records describe a change to one
+slot of a HeapPage, and are written as the change is made.  They consist
+of an integer length followed by that many bytes: the table id, page
+number and slot number of the tuple as integers, a byte whose bits tell
+whether a before and an after tuple follow, and those tuples, each field
+serialized by Field.serialize.  Undoing the change puts the before tuple
+back into the slot (an INSERT has none: the slot is emptied), redoing it
+puts the after tuple there; either is harmless to repeat.
+
+<li>CLR (compensation) records are written by rollback, for each change
+it undoes.  They consist of the long integer LSN of the record they
+compensate, followed by a slot change like the above, with only an
+after tuple.  They are redone, never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table of the BufferPool.  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id and a long integer first record LSN for each active
+transaction; then the long integer LSN from which every record must
+be redone, and an integer count of dirty pages, as well as an integer
+table id, an integer page number and the long integer LSN of the
+first record changing the page since it was written (its recLSN) for
+each dirty page.  Records before that LSN are redone only for the
+dirty pages, from their recLSN on.
 
 </ul>
 
@@ -75,23 +162,69 @@ public class LogFile {
 
     File logFile;
     RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    volatile Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
+    static final int SLOT_UPDATE_RECORD = 8;
+    static final int CLR_RECORD = 9;
     static final long NO_CHECKPOINT_ID = -1;
 
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
+    /** The checkpoint LSN and the base at the start of the log file */
+    static int HEADER_SIZE = 2 * LONG_SIZE;
+
+    /** How long a commit waits for other commits to share its force */
+    static final long GROUP_COMMIT_WINDOW_MICROS = 500;
+    /** How many waiting commits start a force without waiting any longer */
+    static final int GROUP_COMMIT_SIZE = 8;
+    /** Bytes of log the log buffer holds; larger than any record */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+    /** How long the log writer waits for work before it goes away */
+    static final long WRITER_IDLE_MILLIS = 1000;
+    /** How many threads redo the pages changed since the last checkpoint */
+    static final int REDO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
 
-    long currentOffset = -1;
     int pageSize;
-    int totalRecords = 0; // for PatchTest
-
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+
+    /** The log buffer, holding the log from writtenLsn to filledLsn at
+        position LSN modulo its size */
+    private final byte[] buffer = new byte[LOG_BUFFER_SIZE];
+    /** The LSN of the next record to be appended */
+    private final AtomicLong nextLsn = new AtomicLong();
+    /** The end of the records copied into the buffer, without gaps */
+    private final AtomicLong filledLsn = new AtomicLong();
+    /** Shared by appends; held exclusively while the log file is rewritten */
+    private final ReentrantReadWriteLock appendLock = new ReentrantReadWriteLock();
+    /** The LSN of a record minus its offset in the log file; only changed
+        while appends are kept out */
+    private long base;
+
+    /** Guards the fields below, and the log writer waits on it */
+    private final Object writerLock = new Object();
+    /** The end of the log written to the log file */
+    private volatile long writtenLsn;
+    /** The end of the log known to be on disk */
+    private long durableLsn;
+    /** How far the log must be written, as requested by transactions */
+    private long writeRequest;
+    /** How far the log must be forced, as requested by transactions */
+    private long forceRequest;
+    /** How many commits are waiting for the log to be forced */
+    private int waitingCommits;
+    /** The log writer, or null while there is nothing to write */
+    private Thread writer;
+    /** The error the log writer failed with, reported to every waiter */
+    private IOException writerError;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -124,21 +257,233 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                appendLock.writeLock().lock();
+                try {
+                    if (recoveryUndecided) {
+                        raf.seek(0);
+                        raf.setLength(0);
+                        raf.writeLong(NO_CHECKPOINT_ID);
+                        raf.writeLong(0);
+                        base = 0;
+                        resetLsn(raf.getFilePointer());
+                        recoveryUndecided = false;
+                    }
+                } finally {
+                    appendLock.writeLock().unlock();
+                }
+            }
         }
     }
 
     public int getTotalRecords() {
-        return totalRecords;
+        return totalRecords.get();
+    }
+
+    /** @return the LSN the next record will be appended at */
+    long getCurrentOffset() {
+        return nextLsn.get();
+    }
+
+    /** Start appending records at the specified LSN, which must be at
+        the end of the log file.  Must be called with appends kept out. */
+    private void resetLsn(long offset) {
+        nextLsn.set(offset);
+        filledLsn.set(offset);
+        synchronized (writerLock) {
+            writtenLsn = offset;
+            durableLsn = offset;
+            writeRequest = offset;
+            forceRequest = offset;
+        }
+    }
+
+    /** Append a record to the log buffer.  The caller must hold the
+        shared appendLock.
+
+        @param record The record, up to but not including the offset of
+        the record the log file format ends every record with
+        @return the LSN of the record
+    */
+    private long append(byte[] record) throws IOException {
+        int length = record.length + LONG_SIZE;
+        long lsn = nextLsn.getAndAdd(length);
+        if (lsn + length - writtenLsn > LOG_BUFFER_SIZE) {
+            // wait for the log writer to make room
+            flushTo(lsn + length - LOG_BUFFER_SIZE, false);
+        }
+        copyToBuffer(record, 0, record.length, lsn);
+        byte[] trailer = new byte[LONG_SIZE];
+        for (int i = 0; i < LONG_SIZE; i++) {
+            trailer[i] = (byte) (lsn >>> (8 * (LONG_SIZE - 1 - i)));
+        }
+        copyToBuffer(trailer, 0, LONG_SIZE, lsn + record.length);
+        // the log writer only writes the log up to a record that was not
+        // filled in yet, so publish this record after the ones before it
+        while (filledLsn.get() != lsn) {
+            Thread.yield();
+        }
+        filledLsn.set(lsn + length);
+        return lsn;
+    }
+
+    private void copyToBuffer(byte[] b, int off, int len, long lsn) {
+        int pos = (int) (lsn % LOG_BUFFER_SIZE);
+        int first = Math.min(len, LOG_BUFFER_SIZE - pos);
+        System.arraycopy(b, off, buffer, pos, first);
+        System.arraycopy(b, off + first, buffer, 0, len - first);
     }
-    
+
+    /** Append a record without contents to the log buffer.
+        @return the LSN of the record */
+    private long appendRecord(int type, TransactionId tid) throws IOException {
+        return appendRecord(type, tid.getId());
+    }
+
+    private long appendRecord(int type, long tid) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(INT_SIZE + LONG_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(type);
+        dos.writeLong(tid);
+        return append(baos.toByteArray());
+    }
+
+    /** Append a CLR for the undo of the specified slot change.
+        @param compensated The offset of the record undone
+        @param before The contents the slot was given back
+        @return the LSN of the CLR */
+    private long appendClr(long tid, long compensated, LogRecord r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(CLR_RECORD);
+        dos.writeLong(tid);
+        dos.writeLong(compensated);
+        writeSlotChange(dos, new RecordId(r.pid, r.slot), null, r.before);
+        appendLock.readLock().lock();
+        try {
+            return append(baos.toByteArray());
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
+
+    /** Wait until the log writer has written the log up to the specified
+        LSN to the log file, and forced it to disk if force is set.  Must
+        not be called while holding appendLock exclusively, unless all
+        appended records are filled in. */
+    void flushTo(long lsn, boolean force) throws IOException {
+        boolean interrupted = false;
+        synchronized (writerLock) {
+            if (force) {
+                waitingCommits++;
+                forceRequest = Math.max(forceRequest, lsn);
+            }
+            writeRequest = Math.max(writeRequest, lsn);
+            // wake the log writer up; it is started below if it is not running
+            writerLock.notifyAll();
+            try {
+                while ((force ? durableLsn : writtenLsn) < lsn) {
+                    if (writerError != null) {
+                        throw new IOException("could not write the log: " + writerError.getMessage());
+                    }
+                    if (writer == null) {
+                        writer = new Thread("LogFile writer") {
+                            public void run() {
+                                writeLog();
+                            }
+                        };
+                        writer.setDaemon(true);
+                        writer.start();
+                    }
+                    try {
+                        writerLock.wait();
+                    } catch (InterruptedException e) {
+                        // the record is in the log already; finish waiting
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (force) {
+                    waitingCommits--;
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /** The log writer: writes the log buffer to the log file, and forces
+        it, as transactions request. */
+    private void writeLog() {
+        while (true) {
+            boolean force;
+            synchronized (writerLock) {
+                try {
+                    if (writeRequest <= writtenLsn && forceRequest <= durableLsn) {
+                        writerLock.wait(WRITER_IDLE_MILLIS);
+                        if (writeRequest <= writtenLsn && forceRequest <= durableLsn) {
+                            writer = null;
+                            return;
+                        }
+                    }
+                    force = forceRequest > durableLsn;
+                    if (force && !tidToFirstLogRecord.isEmpty()) {
+                        // give other running transactions a chance to commit
+                        // with the same force
+                        long deadline = System.nanoTime() + GROUP_COMMIT_WINDOW_MICROS * 1000;
+                        long left;
+                        while (waitingCommits < GROUP_COMMIT_SIZE
+                               && (left = deadline - System.nanoTime()) > 0) {
+                            writerLock.wait(left / 1000000, (int) (left % 1000000));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    writer = null;
+                    return;
+                }
+            }
+            long from = writtenLsn;
+            long to = filledLsn.get();
+            try {
+                FileChannel channel = raf.getChannel();
+                for (long lsn = from; lsn < to; ) {
+                    int pos = (int) (lsn % LOG_BUFFER_SIZE);
+                    int len = (int) Math.min(to - lsn, LOG_BUFFER_SIZE - pos);
+                    lsn += channel.write(ByteBuffer.wrap(buffer, pos, len), lsn - base);
+                }
+                if (force) {
+                    channel.force(true);
+                }
+            } catch (IOException e) {
+                synchronized (writerLock) {
+                    writerError = e;
+                    writer = null;
+                    writerLock.notifyAll();
+                }
+                return;
+            }
+            synchronized (writerLock) {
+                writtenLsn = to;
+                if (force) {
+                    durableLsn = to;
+                }
+                writerLock.notifyAll();
+            }
+        }
+    }
+
+    /** Wait until every record appended so far is in the log file.
+        @return the end of those records; records appended since may not
+        be in the log file yet */
+    private long drain() throws IOException {
+        long end = nextLsn.get();
+        flushTo(end, false);
+        return end;
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -148,6 +493,9 @@ public class LogFile {
         // calls rollback
 
         synchronized (Database.getBufferPool()) {
+            // pages written by the BufferPool without holding it must be
+            // on disk before rollback writes them
+            Database.getBufferPool().awaitWrites(null);
 
             synchronized(this) {
                 preAppend();
@@ -158,32 +506,40 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                appendLock.readLock().lock();
+                try {
+                    long lsn = appendRecord(ABORT_RECORD, tid);
+                    flushTo(lsn + INT_SIZE + 2 * LONG_SIZE, true);
+                } finally {
+                    appendLock.readLock().unlock();
+                }
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk, together with the commit records
+        of other transactions committing at the same time (see
+        Group commit above.)
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        // keep the log from being rewritten until the record is durable,
+        // which would move it
+        appendLock.readLock().lock();
+        try {
+            long lsn = appendRecord(COMMIT_RECORD, tid);
+            tidToFirstLogRecord.remove(tid.getId());
+            flushTo(lsn + INT_SIZE + 2 * LONG_SIZE, true);
+        } finally {
+            appendLock.readLock().unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,10 +550,9 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
@@ -207,18 +562,233 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(UPDATE_RECORD);
+        dos.writeLong(tid.getId());
+
+        writePageData(dos,before);
+        writePageData(dos,after);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendLock.readLock().lock();
+        try {
+            long lsn = append(baos.toByteArray());
+            Debug.log("WRITE, offset = " + lsn);
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write an INSERT record for a tuple a transaction added to a
+        HeapFile, if the transaction is logged (see logXactionBegin.)
+        @param t The tuple, with its RecordId
+        @return the LSN of the record, or -1 if none was written
+    */
+    public long logInsert(TransactionId tid, Tuple t) throws IOException {
+        return logSlotChange(INSERT_RECORD, tid, t.getRecordId(), null, t);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Write a DELETE record for a tuple a transaction removed from a
+        HeapFile, if the transaction is logged.
+        @param t The tuple, with its RecordId
+        @return the LSN of the record, or -1 if none was written
+    */
+    public long logDelete(TransactionId tid, Tuple t) throws IOException {
+        return logSlotChange(DELETE_RECORD, tid, t.getRecordId(), t, null);
+    }
+
+    /** Write a SLOT_UPDATE record for a tuple of a HeapFile a transaction
+        replaced in place, if the transaction is logged.
+        @param before The old values of the tuple
+        @param after The new values of the tuple, with its RecordId
+        @return the LSN of the record, or -1 if none was written
+    */
+    public long logUpdate(TransactionId tid, Tuple before, Tuple after) throws IOException {
+        return logSlotChange(SLOT_UPDATE_RECORD, tid, after.getRecordId(), before, after);
+    }
+
+    /** @return true if the specified transaction logged its BEGIN and
+        has not completed yet */
+    public boolean isLogged(TransactionId tid) {
+        return tid != null && tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    private long logSlotChange(int type, TransactionId tid, RecordId rid,
+                               Tuple before, Tuple after) throws IOException {
+        if (!isLogged(tid)) {
+            return -1;
+        }
+        preAppend();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(type);
+        dos.writeLong(tid.getId());
+        writeSlotChange(dos, rid, before, after);
+        appendLock.readLock().lock();
+        try {
+            return append(baos.toByteArray());
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
+
+    /** Write the contents of an INSERT, DELETE, SLOT_UPDATE or CLR record
+        that follow the type, tid and (for CLRs) the compensated offset. */
+    static void writeSlotChange(DataOutput out, RecordId rid, Tuple before, Tuple after)
+        throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(rid.getPageId().getTableId());
+        dos.writeInt(rid.getPageId().pageNumber());
+        dos.writeInt(rid.tupleno());
+        dos.writeByte((before != null ? 1 : 0) | (after != null ? 2 : 0));
+        for (Tuple t : new Tuple[] { before, after }) {
+            if (t != null) {
+                for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                    t.getField(i).serialize(dos);
+                }
+            }
+        }
+        dos.flush();
+        out.writeInt(baos.size());
+        out.write(baos.toByteArray());
+    }
+
+    /** Read the contents written by writeSlotChange into r. */
+    static void readSlotChange(DataInput in, LogRecord r) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(b));
+        int tableid = dis.readInt();
+        int pgNo = dis.readInt();
+        r.pid = new HeapPageId(tableid, pgNo);
+        r.slot = dis.readInt();
+        int present = dis.readByte();
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        try {
+            if ((present & 1) != 0) {
+                r.before = readTuple(dis, td);
+            }
+            if ((present & 2) != 0) {
+                r.after = readTuple(dis, td);
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("corrupt tuple in the log record at " + r.offset);
+        }
+    }
+
+    private static Tuple readTuple(DataInputStream dis, TupleDesc td)
+        throws java.text.ParseException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            t.setField(i, td.getFieldType(i).parse(dis));
+        }
+        return t;
+    }
+
+    /** A log record, as read by readRecord. */
+    static class LogRecord {
+        int type;
+        long tid;
+        /** The LSN of the record */
+        long offset;
+        /** The images of an UPDATE record */
+        Page beforePage, afterPage;
+        /** The slot an INSERT, DELETE, SLOT_UPDATE or CLR record changes */
+        HeapPageId pid;
+        int slot;
+        /** The contents of the slot before and after the change, or null
+            for an empty slot */
+        Tuple before, after;
+        /** The record a CLR compensates */
+        long undoNext = -1;
+        /** The running transactions of a CHECKPOINT record and their first
+            records */
+        Map<Long,Long> active;
+        /** Where a CHECKPOINT record says every record must be redone */
+        long redoFrom;
+        /** The dirty page table of a CHECKPOINT record */
+        Map<PageId,Long> dirty;
+
+        boolean isSlotChange() {
+            return type >= INSERT_RECORD && type <= CLR_RECORD;
+        }
+    }
+
+    /** Read the log record starting at the current position of raf,
+        including its trailing LSN.
+        @throws EOFException at the end of the log */
+    LogRecord readRecord(RandomAccessFile raf) throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = raf.getFilePointer() + base;
+        r.type = raf.readInt();
+        r.tid = raf.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+            r.beforePage = readPageData(raf);
+            r.afterPage = readPageData(raf);
+            break;
+        case CHECKPOINT_RECORD:
+            r.active = new HashMap<Long,Long>();
+            int n = raf.readInt();
+            while (n-- > 0) {
+                long xid = raf.readLong();
+                r.active.put(xid, raf.readLong());
+            }
+            r.redoFrom = raf.readLong();
+            r.dirty = new HashMap<PageId,Long>();
+            n = raf.readInt();
+            while (n-- > 0) {
+                int tableid = raf.readInt();
+                int pgNo = raf.readInt();
+                r.dirty.put(new HeapPageId(tableid, pgNo), raf.readLong());
+            }
+            break;
+        case CLR_RECORD:
+            r.undoNext = raf.readLong();
+            readSlotChange(raf, r);
+            break;
+        case INSERT_RECORD:
+        case DELETE_RECORD:
+        case SLOT_UPDATE_RECORD:
+            readSlotChange(raf, r);
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("unknown log record type " + r.type + " at " + r.offset);
+        }
+        if (raf.readLong() != r.offset) {
+            throw new IOException("corrupt log record at " + r.offset);
+        }
+        return r;
+    }
+
+    /** Give a slot of a HeapPage in the BufferPool the contents it had
+        before or after a logged change, on behalf of tid.
+        @return the page */
+    private HeapPage applySlotChange(TransactionId tid, HeapPageId pid, int slot, Tuple t)
+        throws IOException {
+        try {
+            HeapPage p = (HeapPage) Database.getBufferPool()
+                .getPage(tid, new RecordId(pid, slot), Permissions.READ_WRITE);
+            p.setSlot(slot, t);
+            p.markDirty(true, tid);
+            if (t != null) {
+                ((HeapFile) Database.getCatalog().getDbFile(pid.getTableId()))
+                    .getZoneMap().widen(pid.pageNumber(), t);
+            }
+            return p;
+        } catch (DbException e) {
+            throw new IOException("could not change slot " + slot + " of " + pid + ": " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new IOException("could not lock " + pid + " to roll it back");
+        }
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,7 +816,7 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -265,22 +835,26 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            // the page is as large as the page size of its file
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -299,7 +873,7 @@ public class LogFile {
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,150 +881,159 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        appendLock.readLock().lock();
+        try {
+            long lsn = appendRecord(BEGIN_RECORD, tid);
+            tidToFirstLogRecord.put(tid.getId(), lsn);
+            Debug.log("BEGIN OFFSET = " + lsn);
+        } finally {
+            appendLock.readLock().unlock();
+        }
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: it records the dirty page table of the BufferPool
+        instead of writing the dirty pages, and it keeps neither the
+        BufferPool nor appends waiting while it does. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        preAppend();
+        // the dirty page table and the running transactions, without
+        // writing any page; redo starts at the oldest change in the table
+        long[] redoFrom = new long[1];
+        Map<PageId,Long> dirty = Database.getBufferPool().getDirtyPages(redoFrom);
+        Map<Long,Long> active = new HashMap<Long,Long>(tidToFirstLogRecord);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(CHECKPOINT_RECORD);
+        dos.writeLong(-1); //no tid , but leave space for convenience
+        //write list of outstanding transactions
+        dos.writeInt(active.size());
+        for (Map.Entry<Long,Long> e : active.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            dos.writeLong(e.getKey());
+            dos.writeLong(e.getValue());
+        }
+        dos.writeLong(redoFrom[0]);
+        dos.writeInt(dirty.size());
+        for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+            dos.writeInt(e.getKey().getTableId());
+            dos.writeInt(e.getKey().pageNumber());
+            dos.writeLong(e.getValue());
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        appendLock.readLock().lock();
+        try {
+            long startCpOffset = append(baos.toByteArray());
+            force();
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            ByteBuffer head = ByteBuffer.allocate(LONG_SIZE);
+            head.putLong(0, startCpOffset);
+            // positional, and safe from truncation under the read lock
+            FileChannel channel = raf.getChannel();
+            channel.write(head, 0);
+            channel.force(true);
+        } finally {
+            appendLock.readLock().unlock();
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  The records that are kept are copied as they are,
+        LSNs included, to a new log file with a larger base; appends are
+        kept out only while the records appended during the copy are
+        copied as well. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        force();
+        long min = oldestNeeded();
+        if (min - base <= HEADER_SIZE) {
+            return;
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
+        File newFile = new File(logFile.getPath() + ".tmp");
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+        try {
+            logNew.setLength(0);
+            logNew.writeLong(NO_CHECKPOINT_ID);
+            logNew.writeLong(min - HEADER_SIZE);
+            long copied = copyLog(logNew, min, durableLsn());
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+            appendLock.writeLock().lock();
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                // with every record forced the log writer has nothing to
+                // do, so it does not write to the old file any more
+                force();
+                copyLog(logNew, copied, nextLsn.get());
+                // the latest checkpoint, which may be newer than min
+                raf.seek(0);
+                logNew.seek(0);
+                logNew.writeLong(raf.readLong());
+                logNew.getChannel().force(true);
+                logNew.close();
+
+                Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + min + " NEW LENGTH: " + newFile.length());
+
+                raf.close();
+                boolean renamed = newFile.renameTo(logFile);
+                raf = new RandomAccessFile(logFile, "rw");
+                if (!renamed) {
+                    throw new IOException("could not replace " + logFile + " with " + newFile);
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                base = min - HEADER_SIZE;
+            } finally {
+                appendLock.writeLock().unlock();
             }
+        } finally {
+            logNew.close();
+            newFile.delete();
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** @return the LSN of the oldest record recovery or a rollback may
+        need: the first record of a running transaction, or of one the last
+        checkpoint lists as running, or the oldest record the checkpoint
+        says must be redone */
+    private long oldestNeeded() throws IOException {
+        raf.seek(0);
+        long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return base + HEADER_SIZE;
+        }
+        raf.seek(cpLoc - base);
+        LogRecord cp = readRecord(raf);
+        long min = Math.min(cpLoc, cp.redoFrom);
+        for (long first : cp.active.values()) {
+            min = Math.min(min, first);
+        }
+        for (long recLsn : cp.dirty.values()) {
+            min = Math.min(min, recLsn);
+        }
+        for (long first : tidToFirstLogRecord.values()) {
+            min = Math.min(min, first);
+        }
+        return min;
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Copy the log from the specified LSN up to end to the end of the
+        specified file.
+        @return end */
+    private long copyLog(RandomAccessFile to, long from, long end) throws IOException {
+        FileChannel in = raf.getChannel();
+        FileChannel out = to.getChannel();
+        for (long pos = from - base; pos < end - base; ) {
+            pos += in.transferTo(pos, end - base - pos, out);
+        }
+        return end;
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** @return how far the log is known to be on disk */
+    private long durableLsn() {
+        synchronized (writerLock) {
+            return durableLsn;
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -464,9 +1047,59 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().awaitWrites(null);
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+                }
+                long end = drain();
+
+                // the changes of tid, and where an earlier, interrupted
+                // rollback got to
+                ArrayList<LogRecord> changes = new ArrayList<LogRecord>();
+                long compensated = Long.MAX_VALUE;
+                raf.seek(first - base);
+                while (raf.getFilePointer() + base < end) {
+                    LogRecord r = readRecord(raf);
+                    if (r.tid != tid.getId()) {
+                        continue;
+                    }
+                    if (r.type == CLR_RECORD) {
+                        compensated = Math.min(compensated, r.undoNext);
+                    } else if (r.isSlotChange() || r.type == UPDATE_RECORD) {
+                        changes.add(r);
+                    }
+                }
+
+                // undo them, latest first, logging what was undone
+                Set<HeapPage> undone = new LinkedHashSet<HeapPage>();
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    LogRecord r = changes.get(i);
+                    if (r.offset >= compensated) {
+                        continue;
+                    }
+                    if (r.type == UPDATE_RECORD) {
+                        // a page written before tid completed: write back
+                        // the image it had before
+                        Page before = r.beforePage;
+                        Database.getCatalog().getDbFile(before.getId().getTableId()).writePage(before);
+                        Database.getBufferPool().discardPage(before.getId());
+                        continue;
+                    }
+                    HeapPage p = applySlotChange(tid, r.pid, r.slot, r.before);
+                    p.setLsn(appendClr(tid.getId(), r.offset, r));
+                    undone.add(p);
+                }
+
+                // the pages may have been written with the changes (by a
+                // checkpoint), so write them back as they were
+                force();
+                for (HeapPage p : undone) {
+                    Database.getCatalog().getDbFile(p.getId().getTableId()).writePage(p);
+                    p.markDirty(false, null);
+                }
             }
         }
     }
@@ -491,20 +1124,301 @@ public class LogFile {
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().awaitWrites(null);
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < HEADER_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    raf.writeLong(0);
+                }
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                base = raf.readLong();
+
+                // analysis: find the losers, and the records to redo
+                long redoFrom = base + HEADER_SIZE;
+                Map<PageId,Long> dirty = new HashMap<PageId,Long>();
+                Map<Long,Long> losers = new HashMap<Long,Long>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc - base);
+                    LogRecord cp = readRecord(raf);
+                    losers.putAll(cp.active);
+                    redoFrom = cp.redoFrom;
+                    dirty = cp.dirty;
+                }
+                long start = redoFrom;
+                for (long lsn : dirty.values()) {
+                    start = Math.min(start, lsn);
+                }
+                for (long first : losers.values()) {
+                    start = Math.min(start, first);
+                }
+                Map<Long,List<LogRecord>> changes = new HashMap<Long,List<LogRecord>>();
+                Map<Long,Long> compensated = new HashMap<Long,Long>();
+                Map<PageId,List<LogRecord>> redo = new HashMap<PageId,List<LogRecord>>();
+                long end = scanLog(start, redoFrom, dirty, losers, changes, compensated, redo);
+                // a torn record at the end was never acknowledged to anyone
+                raf.setLength(end - base);
+                resetLsn(end);
+
+                redo(redo);
+                undo(losers.keySet(), changes, compensated);
+                for (PageId pid : redo.keySet()) {
+                    Database.getBufferPool().discardPage(pid);
+                }
             }
          }
     }
 
+    /** Read the log from the specified offset to its end, following which
+        transactions are running, and collecting the records that change
+        pages.
+        @param redoFrom Where the records to redo start
+        @param dirty The dirty page table of the checkpoint: records before
+          redoFrom are redone only for these pages, from their recLSN on
+        @param running The transactions running at start, and their first
+          records; on return, the transactions that did not complete
+        @param changes Set to the records changing pages of each
+          transaction that did not complete, in log order
+        @param compensated Set to the earliest record each transaction
+          wrote a CLR for
+        @param redo Set to the records to redo, by page, in log order
+        @return the end of the last complete record */
+    private long scanLog(long start, long redoFrom, Map<PageId,Long> dirty, Map<Long,Long> running,
+                         Map<Long,List<LogRecord>> changes, Map<Long,Long> compensated,
+                         Map<PageId,List<LogRecord>> redo) throws IOException {
+        raf.seek(start - base);
+        long end = start;
+        while (end - base < raf.length()) {
+            LogRecord r;
+            try {
+                r = readRecord(raf);
+            } catch (IOException e) {
+                Debug.log("LOG ENDS WITH AN INCOMPLETE RECORD AT " + end + ": " + e.getMessage());
+                break;
+            } catch (RuntimeException e) {
+                Debug.log("LOG ENDS WITH AN INCOMPLETE RECORD AT " + end + ": " + e);
+                break;
+            }
+            end = raf.getFilePointer() + base;
+            if (r.type == CLR_RECORD) {
+                // CLRs are also redone like any other change, below
+                Long c = compensated.get(r.tid);
+                compensated.put(r.tid, c == null ? r.undoNext : Math.min(c, r.undoNext));
+            }
+            switch (r.type) {
+            case BEGIN_RECORD:
+                // transaction ids start over after a restart
+                running.put(r.tid, r.offset);
+                changes.remove(r.tid);
+                compensated.remove(r.tid);
+                break;
+            case COMMIT_RECORD:
+            case ABORT_RECORD:
+                running.remove(r.tid);
+                changes.remove(r.tid);
+                compensated.remove(r.tid);
+                break;
+            case CLR_RECORD:
+            case UPDATE_RECORD:
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+            case SLOT_UPDATE_RECORD:
+                List<LogRecord> l = changes.get(r.tid);
+                if (l == null) {
+                    l = new ArrayList<LogRecord>();
+                    changes.put(r.tid, l);
+                }
+                l.add(r);
+                PageId pid = r.type == UPDATE_RECORD ? r.afterPage.getId() : r.pid;
+                Long recLsn = dirty.get(pid);
+                if (r.offset >= redoFrom || (recLsn != null && r.offset >= recLsn)) {
+                    l = redo.get(pid);
+                    if (l == null) {
+                        l = new ArrayList<LogRecord>();
+                        redo.put(pid, l);
+                    }
+                    l.add(r);
+                }
+                break;
+            }
+        }
+        return end;
+    }
+
+    /** Redo the specified records, grouped by the page they change, on
+        REDO_THREADS threads.  Each page is read, changed by its records in
+        log order and written back. */
+    private void redo(Map<PageId,List<LogRecord>> redo) throws IOException {
+        int threads = Math.min(REDO_THREADS, redo.size());
+        if (threads == 0) {
+            return;
+        }
+        final List<List<PageId>> partitions = new ArrayList<List<PageId>>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<PageId>());
+        }
+        for (PageId pid : redo.keySet()) {
+            partitions.get((pid.hashCode() & Integer.MAX_VALUE) % threads).add(pid);
+        }
+        final Map<PageId,List<LogRecord>> records = redo;
+        final IOException[] error = new IOException[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final List<PageId> pids = partitions.get(i);
+            workers[i] = new Thread("LogFile redo " + i) {
+                public void run() {
+                    try {
+                        for (PageId pid : pids) {
+                            redoPage(pid, records.get(pid));
+                        }
+                    } catch (IOException e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        boolean interrupted = false;
+        for (Thread w : workers) {
+            while (true) {
+                try {
+                    w.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+    }
+
+    private void redoPage(PageId pid, List<LogRecord> records) throws IOException {
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        Page p = null;
+        for (LogRecord r : records) {
+            if (r.type == UPDATE_RECORD) {
+                p = r.afterPage;
+                continue;
+            }
+            if (p == null) {
+                p = file.readPage(pid);
+                if (p == null) {
+                    throw new IOException("could not read " + pid + " to redo it");
+                }
+            }
+            setSlot((HeapPage) p, r.slot, r.after);
+        }
+        file.writePage(p);
+    }
+
+    private static void setSlot(HeapPage p, int slot, Tuple t) throws IOException {
+        try {
+            p.setSlot(slot, t);
+        } catch (DbException e) {
+            throw new IOException("could not change slot " + slot + " of " + p.getId() + ": " + e.getMessage());
+        }
+    }
+
+    /** Roll the specified transactions back, after redo, without the
+        BufferPool, and log their abort.
+        @param changes The records of each transaction that change pages
+        @param compensated The earliest record each transaction wrote a
+          CLR for; it and later records are undone already */
+    private void undo(Set<Long> losers, Map<Long,List<LogRecord>> changes,
+                      Map<Long,Long> compensated) throws IOException {
+        List<LogRecord> todo = new ArrayList<LogRecord>();
+        for (Long tid : losers) {
+            List<LogRecord> l = changes.get(tid);
+            Long c = compensated.get(tid);
+            if (l != null) {
+                for (LogRecord r : l) {
+                    if (r.type != CLR_RECORD && (c == null || r.offset < c)) {
+                        todo.add(r);
+                    }
+                }
+            }
+        }
+        Collections.sort(todo, new Comparator<LogRecord>() {
+            public int compare(LogRecord a, LogRecord b) {
+                return a.offset > b.offset ? -1 : a.offset < b.offset ? 1 : 0;
+            }
+        });
+
+        Map<PageId,Page> undone = new LinkedHashMap<PageId,Page>();
+        for (LogRecord r : todo) {
+            if (r.type == UPDATE_RECORD) {
+                undone.put(r.beforePage.getId(), r.beforePage);
+                continue;
+            }
+            Page p = undone.get(r.pid);
+            if (p == null) {
+                p = Database.getCatalog().getDbFile(r.pid.getTableId()).readPage(r.pid);
+                if (p == null) {
+                    throw new IOException("could not read " + r.pid + " to undo it");
+                }
+                undone.put(r.pid, p);
+            }
+            setSlot((HeapPage) p, r.slot, r.before);
+            appendClr(r.tid, r.offset, r);
+        }
+        force();
+        for (Page p : undone.values()) {
+            Database.getCatalog().getDbFile(p.getId().getTableId()).writePage(p);
+        }
+        appendLock.readLock().lock();
+        try {
+            for (Long tid : losers) {
+                appendRecord(ABORT_RECORD, tid);
+            }
+        } finally {
+            appendLock.readLock().unlock();
+        }
+        force();
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            long end = drain();
+            raf.seek(0);
+            System.out.println("checkpoint at " + raf.readLong());
+            raf.readLong();
+            while (raf.getFilePointer() + base < end) {
+                LogRecord r = readRecord(raf);
+                StringBuilder sb = new StringBuilder();
+                sb.append(r.offset).append(": type ").append(r.type)
+                    .append(" tid ").append(r.tid);
+                if (r.type == UPDATE_RECORD) {
+                    sb.append(" page ").append(r.afterPage.getId());
+                } else if (r.type == CHECKPOINT_RECORD) {
+                    sb.append(" active ").append(r.active);
+                } else if (r.isSlotChange()) {
+                    sb.append(" slot ").append(r.slot).append(" of ").append(r.pid)
+                        .append(": ").append(r.before).append(" -> ").append(r.after);
+                    if (r.type == CLR_RECORD) {
+                        sb.append(" compensating ").append(r.undoNext);
+                    }
+                }
+                System.out.println(sb);
+            }
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force every record appended so far to disk. */
+    public void force() throws IOException {
+        flushTo(nextLsn.get(), true);
     }
 
 }
@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the optimizer chose to evaluate this join by probing an index
+     * of t2 for every tuple of t1 (see {@link IndexNestedLoopJoin}) */
+    public boolean indexJoin = false;
+
     public LogicalJoinNode() {
     }
 
@@ -1,10 +1,12 @@
 package simpledb;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.List;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -305,6 +307,34 @@ public class LogicalPlan {
 
         }
 
+        // pick the access path of each table before its filters are stacked
+        // on top of it. The filter that an index scan evaluates is still
+        // added below; rechecking it is cheap and keeps the cardinality
+        // estimates of the plan the same as for a sequential scan. A
+        // transaction that reads a snapshot scans every table: the indexes
+        // are not versioned, so they may miss rows of its snapshot, and
+        // reading them would lock their pages.
+        boolean snapshot = Database.getBufferPool().readsSnapshot(t);
+        tableIt = tables.iterator();
+        while (tableIt.hasNext() && !snapshot) {
+            LogicalScanNode table = tableIt.next();
+            IndexScan is = chooseIndexScan(t, table, statsMap, explain);
+            if (is != null)
+                subplanMap.put(table.alias, is);
+        }
+
+        // let sequential scans decode only the fields the query uses
+        tableIt = tables.iterator();
+        while (tableIt.hasNext()) {
+            LogicalScanNode table = tableIt.next();
+            DbIterator subplan = subplanMap.get(table.alias);
+            if (subplan instanceof SeqScan) {
+                HashSet<Integer> fields = requiredFields(table.alias, subplan.getTupleDesc());
+                if (fields != null)
+                    ((SeqScan) subplan).setRequiredFields(fields);
+            }
+        }
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -322,10 +352,7 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = parseConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -335,6 +362,14 @@ public class LogicalPlan {
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
+            // let a sequential scan below the filters skip pages that the
+            // predicate rules out
+            DbIterator leaf = subplan;
+            while (leaf instanceof Filter)
+                leaf = ((Filter) leaf).getChildren()[0];
+            if (leaf instanceof SeqScan)
+                ((SeqScan) leaf).pushDown(p);
+
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
@@ -344,6 +379,7 @@ public class LogicalPlan {
         }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
+        jo.indexJoins = !snapshot;
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
@@ -480,6 +516,106 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** Convert the constant of a filter to a Field of the specified type. */
+    private static Field parseConstant(LogicalFilterNode lf, Type ftyp) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Collect the fields of a table that the select list, filters, joins,
+     *  aggregate and ORDER BY of the query refer to.
+     *  @param alias The alias of the table
+     *  @param td The TupleDesc of the scan of the table
+     *  @return the indexes in td of the fields the query uses, or null if
+     *    the select list includes all of the fields of the table
+     */
+    private HashSet<Integer> requiredFields(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*") || si.fname.equals(alias + ".*"))
+                return null;
+            names.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        if (hasAgg) {
+            names.add(aggField);
+            names.add(groupByField);
+        }
+        if (hasOrderBy)
+            names.add(oByField);
+
+        HashSet<Integer> fields = new HashSet<Integer>();
+        for (String name : names) {
+            if (name == null || !name.startsWith(alias + "."))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(name));
+            } catch (NoSuchElementException e) {
+                // unknown fields are reported while the plan is built
+            }
+        }
+        return fields;
+    }
+
+    /** Find the cheapest way to evaluate one of the filters over a table
+     *  through an index of the table.
+     *  @param t The transaction the returned scan will run as a part of
+     *  @param table The table to choose an access path for
+     *  @param statsMap The statistics of the tables of the plan, by table name
+     *  @param explain flag indicating whether the choice should be printed
+     *  @return an IndexScan if its estimated cost is below that of a
+     *    sequential scan of the table, or null if the table should be scanned
+     */
+    private IndexScan chooseIndexScan(TransactionId t, LogicalScanNode table,
+        HashMap<String,TableStats> statsMap, boolean explain) {
+        List<IndexFile> indexes = Database.getCatalog().getIndexes(table.t);
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+        if (indexes.isEmpty() || s == null)
+            return null;
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        double bestCost = s.estimateScanCost();
+        IndexScan best = null;
+        Iterator<LogicalFilterNode> filterIt = filters.iterator();
+        while (filterIt.hasNext()) {
+            LogicalFilterNode lf = filterIt.next();
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue; // reported when the filter is added to the plan
+            }
+            Field f = parseConstant(lf, td.getFieldType(field));
+            double sel = s.estimateSelectivity(field, lf.p, f);
+            for (IndexFile index : indexes) {
+                if (index.getKeyField() != field || !index.supports(lf.p))
+                    continue;
+                double cost = s.estimateIndexScanCost(index, sel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = new IndexScan(t, index, new IndexPredicate(lf.p, f), table.alias);
+                }
+            }
+        }
+        if (best != null && explain) {
+            IndexPredicate ipred = best.getIndexPredicate();
+            System.out.println("Index scan of " + best.getKeyFieldName() + " "
+                + ipred.getOp() + " " + ipred.getField() + ": cost " + bestCost
+                + " (scan cost " + s.estimateScanCost() + ")");
+        }
+        return best;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
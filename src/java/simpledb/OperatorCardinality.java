@@ -40,9 +40,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
+                } else if (scannedTable(children[0]) != null) {
+                    childC = tableStats.get(scannedTable(children[0]))
                             .estimateTableCardinality(1.0);
                 }
             }
@@ -76,9 +75,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
+            } else if (scannedTable(child) != null) {
                 f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
+                        scannedTable(child))
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
             }
@@ -119,9 +118,9 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child1) != null) {
+            child1Card = tableStats.get(scannedTable(child1))
+                    .estimateTableCardinality(1.0);
         }
 
         if (child2 instanceof Operator) {
@@ -131,9 +130,9 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child2) != null) {
+            child2Card = tableStats.get(scannedTable(child2))
+                    .estimateTableCardinality(1.0);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -176,9 +175,9 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child1) != null) {
+            child1Card = tableStats.get(scannedTable(child1))
+                    .estimateTableCardinality(1.0);
         }
 
         if (child2 instanceof Operator) {
@@ -188,9 +187,9 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (scannedTable(child2) != null) {
+            child2Card = tableStats.get(scannedTable(child2))
+                    .estimateTableCardinality(1.0);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -218,9 +217,9 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (scannedTable(child) != null) {
+            childCard = tableStats.get(scannedTable(child))
+                    .estimateTableCardinality(1.0);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -243,4 +242,17 @@ public class OperatorCardinality {
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    /**
+     * @return the name of the table a SeqScan or an IndexScan reads, or null
+     *         if the iterator is neither
+     */
+    private static String scannedTable(DbIterator it) {
+        if (it instanceof SeqScan) {
+            return ((SeqScan) it).getTableName();
+        } else if (it instanceof IndexScan) {
+            return ((IndexScan) it).getTableName();
+        }
+        return null;
+    }
 }
@@ -9,10 +9,12 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "scan(index)";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -65,24 +67,33 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan) {
+            String tableName, alias, scan;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = SCAN;
+            } else {
+                IndexScan s = (IndexScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = INDEX_SCAN;
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -109,16 +120,17 @@ public class QueryPlanVisualizer {
 
             if (plan instanceof Join) {
                 Join j = (Join) plan;
+                String join = plan instanceof IndexNestedLoopJoin ? INDEX_JOIN : JOIN;
                 TupleDesc td = j.getTupleDesc();
                 JoinPredicate jp = j.getJoinPredicate();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", join,
                         field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = JOIN.length() / 2;
+                if (join.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = join.length() / 2;
 
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + adjustDepth + 3, children[0],
@@ -128,7 +140,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - JOIN.length() / 2;
+                        - join.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
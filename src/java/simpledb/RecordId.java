@@ -65,7 +65,7 @@ public class RecordId implements Serializable {
      */
     @Override
     public int hashCode() {
-        return tupleno;
+        return 31 * pid.hashCode() + tupleno;
     }
 
 }
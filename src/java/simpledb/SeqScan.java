@@ -15,6 +15,8 @@ public class SeqScan implements DbIterator {
     private String tableAlias;
     private DbFile file;
     private DbFileIterator dbItr;
+    private ArrayList<Predicate> pushedPredicates = new ArrayList<Predicate>();
+    private boolean[] requiredFields;
     private String tablename;
     private TupleDesc myTd;
 
@@ -35,6 +37,7 @@ public class SeqScan implements DbIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+    	this.tid = tid;
     	this.tableid = tableid;
     	this.tableAlias = tableAlias;
     	this.tablename = Database.getCatalog().getTableName(tableid);
@@ -68,6 +71,13 @@ public class SeqScan implements DbIterator {
         return tableAlias;
     }
 
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -86,6 +96,8 @@ public class SeqScan implements DbIterator {
     	this.tablename = Database.getCatalog().getTableName(tableid);
     	this.dbItr.close();
     	this.dbItr = Database.getCatalog().getDbFile(tableid).iterator(tid);
+    	this.pushedPredicates = new ArrayList<Predicate>();
+    	this.requiredFields = null;
     	myTd = Database.getCatalog().getTupleDesc(tableid);
     	String[] newNames = new String[myTd.numFields()];
     	Type[] newTypes = new Type[myTd.numFields()];
@@ -102,6 +114,44 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Tells the scan about a predicate that a Filter above it applies to its
+     * tuples. A scan of a HeapFile then only returns the tuples that satisfy
+     * it, evaluating it on the page bytes and skipping the pages whose zone
+     * map rules it out; scans of other files ignore it, so the Filter must
+     * stay in the plan. Must be called before the scan is opened.
+     *
+     * @param p a predicate over the fields of this scan's TupleDesc
+     */
+    public void pushDown(Predicate p) {
+        pushedPredicates.add(p);
+        pushedDown();
+    }
+
+    /**
+     * Tells the scan which fields the operators above it use. A scan of a
+     * HeapFile then only decodes those fields up front; the others are
+     * decoded if and when they are asked for. Must be called before the
+     * scan is opened.
+     *
+     * @param fields the indexes of the required fields in this scan's
+     *            TupleDesc
+     */
+    public void setRequiredFields(Collection<Integer> fields) {
+        requiredFields = new boolean[myTd.numFields()];
+        for (int i : fields) {
+            requiredFields[i] = true;
+        }
+        pushedDown();
+    }
+
+    private void pushedDown() {
+        DbFile f = Database.getCatalog().getDbFile(tableid);
+        if (f instanceof HeapFile) {
+            dbItr = ((HeapFile) f).iterator(tid, pushedPredicates, requiredFields);
+        }
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         dbItr.open();
     }
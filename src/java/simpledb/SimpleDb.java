@@ -8,6 +8,10 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
+            // a trailing "slotted" writes the pages of a slotted table
+            boolean slotted = args[args.length-1].equals("slotted");
+            if (slotted)
+                args = java.util.Arrays.copyOf(args, args.length-1);
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
@@ -44,8 +48,12 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator);
+            if (slotted)
+                HeapFileEncoder.convertSlotted(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),ts,fieldSeparator);
+            else
+                HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
+                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -0,0 +1,362 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapPage is the HeapPage of a table whose tuples are stored as
+ * variable-length records, so that a string only takes as many bytes as it
+ * has characters instead of Type.STRING_LEN.
+ * <p>
+ * A page starts with a two byte count of slots, followed by the slot
+ * directory: a two byte offset and a two byte length per slot, with offset
+ * 0 for an empty slot. The records are packed against the end of the page,
+ * growing towards the directory. A record stores an INT_TYPE field and the
+ * code of a dictionary encoded field as four bytes, and a STRING_TYPE field
+ * as a four byte length followed by that many bytes, without padding. An
+ * all zero page is an empty page.
+ * <p>
+ * Changes are kept as tuples until the page is written. getPageData packs
+ * the records of the used slots against the end of the page again, so the
+ * space of deleted records and of records that shrank is reclaimed every
+ * time the page is written. A tuple keeps its slot -- and so its RecordId --
+ * for as long as it lives, and can be updated in place as long as the page
+ * has room for its new size.
+ *
+ * @see HeapFile#isSlotted
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** Bytes used by the slot count. */
+    static final int HEADER_SIZE = 2;
+    /** Bytes used by the directory entry of a slot. */
+    static final int SLOT_SIZE = 2 + 2;
+    /** The largest page whose offsets fit in the directory. */
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    /** Where the record of each slot is in data, for the slots as read */
+    private int offsets[];
+    /** The length of the record of each slot in data */
+    private int lengths[];
+    /** The current length of the record of each slot; 0 for empty slots */
+    private int sizes[];
+    /** Bytes the page would take if it were written now */
+    private int usedBytes;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     *
+     * @throws IOException if the slot directory is corrupt
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()),
+                getDictionaries(id.getTableId()));
+    }
+
+    /**
+     * Create a SlottedHeapPage of a table with the specified schema and
+     * dictionaries from a set of bytes of data read from disk.
+     *
+     * @see HeapPage#HeapPage(HeapPageId, byte[], TupleDesc, Dictionary[])
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data, TupleDesc td, Dictionary[] dictionaries) throws IOException {
+        super(id, td, dictionaries);
+        if (data.length > MAX_PAGE_SIZE)
+            throw new IOException("slotted pages cannot be larger than 64 KB");
+        this.pageSize = data.length;
+        this.data = data;
+
+        int maxSlots = getMaxSlots(td, pageSize);
+        numSlots = readShort(data, 0);
+        if (numSlots > maxSlots)
+            throw new IOException("page " + id + " has " + numSlots + " slots");
+        tuples = new Tuple[maxSlots];
+        offsets = new int[maxSlots];
+        lengths = new int[maxSlots];
+        sizes = new int[maxSlots];
+        usedBytes = HEADER_SIZE + numSlots * SLOT_SIZE;
+        for (int i = 0; i < numSlots; i++) {
+            offsets[i] = readShort(data, HEADER_SIZE + i * SLOT_SIZE);
+            lengths[i] = readShort(data, HEADER_SIZE + i * SLOT_SIZE + 2);
+            if (offsets[i] + lengths[i] > pageSize)
+                throw new IOException("slot " + i + " of page " + id + " is out of bounds");
+            sizes[i] = offsets[i] == 0 ? 0 : lengths[i];
+            usedBytes += sizes[i];
+        }
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the smallest number of bytes the record of a tuple can take
+     */
+    static int getMinRecordSize(TupleDesc td) {
+        return 4 * td.numFields();
+    }
+
+    /**
+     * @return the most slots a page of the specified size of a table with
+     *         the specified schema can have
+     */
+    static int getMaxSlots(TupleDesc td, int pageSize) {
+        return (pageSize - HEADER_SIZE) / (SLOT_SIZE + getMinRecordSize(td));
+    }
+
+    /**
+     * @return the number of bytes the record of t takes
+     * @param dictionaries the dictionaries of the fields of t, or null if
+     *            none of them is dictionary encoded
+     */
+    static int getRecordSize(Tuple t, Dictionary[] dictionaries) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            size += 4;
+            if (td.getFieldType(j) == Type.STRING_TYPE
+                    && (dictionaries == null || dictionaries[j] == null))
+                size += Math.min(((StringField) t.getField(j)).getValue().length(), Type.STRING_LEN);
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the record of a tuple. Strings are written like
+     * StringField.serialize does, one byte per character, without padding.
+     *
+     * @param dictionaries the dictionaries of the fields of t, or null if
+     *            none of them is dictionary encoded
+     */
+    static byte[] encodeRecord(Tuple t, Dictionary[] dictionaries) {
+        TupleDesc td = t.getTupleDesc();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(getRecordSize(t, dictionaries));
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                if (dictionaries != null && dictionaries[j] != null) {
+                    dos.writeInt(dictionaries[j].encode(t.getField(j)));
+                } else if (td.getFieldType(j) == Type.INT_TYPE) {
+                    dos.writeInt(((IntField) t.getField(j)).getValue());
+                } else {
+                    String s = ((StringField) t.getField(j)).getValue();
+                    if (s.length() > Type.STRING_LEN)
+                        s = s.substring(0, Type.STRING_LEN);
+                    dos.writeInt(s.length());
+                    dos.writeBytes(s);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Lays out a page of the specified size holding the specified records,
+     * one per slot; a null record is an empty slot.
+     */
+    static byte[] createPageData(List<byte[]> records, int npagebytes) {
+        byte[] page = new byte[npagebytes];
+        writeShort(page, 0, records.size());
+        int end = npagebytes;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] rec = records.get(i);
+            if (rec == null)
+                continue;
+            end -= rec.length;
+            System.arraycopy(rec, 0, page, end, rec.length);
+            writeShort(page, HEADER_SIZE + i * SLOT_SIZE, end);
+            writeShort(page, HEADER_SIZE + i * SLOT_SIZE + 2, rec.length);
+        }
+        return page;
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    private static void writeShort(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(id, oldData, td, dictionaries);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    SlottedHeapPage copyOf(byte[] data) throws IOException {
+        return new SlottedHeapPage(id, data, td, dictionaries);
+    }
+
+    /**
+     * @return the number of bytes the specified field takes in the record
+     *         at pos, which starts with that field
+     */
+    private int storedLength(int field, int pos) {
+        if (dictionaries[field] != null || td.getFieldType(field) == Type.INT_TYPE)
+            return 4;
+        return 4 + readInt(pos);
+    }
+
+    int fieldPosition(int slotId, int field) {
+        int pos = offsets[slotId];
+        for (int j = 0; j < field; j++)
+            pos += storedLength(j, pos);
+        return pos;
+    }
+
+    Tuple decodeTuple(int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(id, slotId));
+        int pos = offsets[slotId];
+        for (int j = 0; j < td.numFields(); j++) {
+            t.setField(j, decodeAt(j, pos));
+            pos += storedLength(j, pos);
+        }
+        return t;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the records of the used slots packed against its end. Empty slots at
+     * the end of the directory are left out.
+     *
+     * @see #SlottedHeapPage
+     */
+    public byte[] getPageData() {
+        int last = numSlots;
+        while (last > 0 && !isSlotUsed(last - 1))
+            last--;
+        ArrayList<byte[]> records = new ArrayList<byte[]>(last);
+        for (int i = 0; i < last; i++) {
+            if (!isSlotUsed(i)) {
+                records.add(null);
+            } else if (tuples[i] == null) {
+                // a slot that was never decoded is unchanged since it was read
+                records.add(Arrays.copyOfRange(data, offsets[i], offsets[i] + lengths[i]));
+            } else {
+                records.add(encodeRecord(tuples[i], dictionaries));
+            }
+        }
+        return createPageData(records, pageSize);
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        int i = findSlot(t);
+        if (i < 0) {
+            throw new DbException("This tuple does not exist on this page");
+        }
+        if (!isSlotUsed(i)) {
+            throw new DbException("This tuple slot is already empty");
+        }
+        usedBytes -= sizes[i];
+        sizes[i] = 0;
+    }
+
+    /**
+     * @return the first empty slot in the directory, or -1 if there is none
+     */
+    private int findEmptySlot() {
+        for (int i = 0; i < numSlots; i++) {
+            if (sizes[i] == 0)
+                return i;
+        }
+        return -1;
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("Tried to insert a tuple into a page of incompatible types");
+        }
+        if (!hasRoomFor(t)) {
+            throw new DbException("There is no space in this page");
+        }
+        encodeFields(t);
+        int i = findEmptySlot();
+        if (i < 0) {
+            i = numSlots++;
+            usedBytes += SLOT_SIZE;
+        }
+        sizes[i] = getRecordSize(t, dictionaries);
+        usedBytes += sizes[i];
+        tuples[i] = t;
+        t.setRecordId(new RecordId(this.id, i));
+    }
+
+    /**
+     * Puts t into the specified slot, or empties the slot if t is null,
+     * extending the slot directory if needed. The page may hold more than
+     * fits while rollback or recovery is still replaying changes; it fits
+     * again once they are all applied, since it then holds contents it
+     * had before.
+     */
+    void setSlot(int i, Tuple t) throws DbException {
+        if (i < 0 || i >= tuples.length) {
+            throw new DbException("page " + id + " has no slot " + i);
+        }
+        while (numSlots <= i) {
+            sizes[numSlots++] = 0;
+            usedBytes += SLOT_SIZE;
+        }
+        usedBytes -= sizes[i];
+        sizes[i] = 0;
+        if (t == null) {
+            return;
+        }
+        encodeFields(t);
+        sizes[i] = getRecordSize(t, dictionaries);
+        usedBytes += sizes[i];
+        tuples[i] = t;
+        t.setRecordId(new RecordId(this.id, i));
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        if (findEmptySlot() >= 0)
+            return usedBytes + getRecordSize(t, dictionaries) <= pageSize;
+        return numSlots < tuples.length
+                && usedBytes + SLOT_SIZE + getRecordSize(t, dictionaries) <= pageSize;
+    }
+
+    public void updateTuple(Tuple t, Tuple replacement) throws DbException {
+        int i = checkUpdate(t, replacement);
+        int size = getRecordSize(replacement, dictionaries);
+        if (usedBytes - sizes[i] + size > pageSize) {
+            throw new DbException("There is no space in this page for the new values");
+        }
+        usedBytes += size - sizes[i];
+        sizes[i] = size;
+        tuples[i] = replacement;
+        replacement.setRecordId(new RecordId(this.id, i));
+    }
+
+    /**
+     * Returns the number of tuples of the smallest possible size that could
+     * still be added to this page.
+     */
+    public int getNumEmptySlots() {
+        int minSize = getMinRecordSize(td);
+        int free = pageSize - usedBytes;
+        int emptySlots = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (sizes[i] == 0)
+                emptySlots++;
+        }
+        int count = Math.min(emptySlots, free / minSize);
+        free -= count * minSize;
+        return count + Math.min(tuples.length - numSlots, free / (SLOT_SIZE + minSize));
+    }
+
+    public boolean isSlotUsed(int i) {
+        return i < numSlots && sizes[i] > 0;
+    }
+}
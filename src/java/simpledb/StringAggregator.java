@@ -71,7 +71,7 @@ public class StringAggregator implements Aggregator {
         	Field gbfieldValue = tup.getField(gbfield);
         	if (aggregateMap.containsKey(gbfieldValue)) {
         		Tuple t2 = aggregateMap.get(gbfieldValue);
-        		int value = ((IntField) t2.getField(afield)).getValue();
+        		int value = ((IntField) t2.getField(1)).getValue();
         		t2.setField(1, new IntField(value + 1));
         	} else {
         		Tuple t2 = new Tuple(tupleDesc);
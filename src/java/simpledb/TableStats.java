@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -78,7 +79,8 @@ public class TableStats {
         // some code goes here
     	HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableid);
     	this.ioCostPerPage = ioCostPerPage;
-    	DbFileIterator itr = table.iterator(new TransactionId());
+    	TransactionId tid = new TransactionId();
+    	DbFileIterator itr = table.iterator(tid);
     	TupleDesc td = table.getTupleDesc();
     	int numFields = td.numFields();
     	this.intHistArray = new IntHistogram[numFields];
@@ -131,6 +133,10 @@ public class TableStats {
 				}
 			}
 			itr.close();
+			// release the read locks of the scans
+			Database.getBufferPool().transactionComplete(tid);
+		} catch (IOException e) {
+			e.printStackTrace();
 		} catch (DbException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -156,6 +162,26 @@ public class TableStats {
         return this.ioCostPerPage * this.numPages;
     }
 
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate with
+     * the specified selectivity through the specified index of this table.
+     * The index is unclustered, so every matching tuple is assumed to cost
+     * one page read of the table, on top of the pages read to find the
+     * first matching entry. The leaf pages read after that are ignored, as
+     * they hold many entries each.
+     * 
+     * @param index
+     *            an index of this table
+     * @param selectivityFactor
+     *            the selectivity of the predicate evaluated by the index
+     * @return The estimated cost of the index scan, comparable with
+     *         {@link #estimateScanCost()}
+     */
+    public double estimateIndexScanCost(IndexFile index, double selectivityFactor) {
+        return this.ioCostPerPage
+                * (index.pagesPerProbe() + selectivityFactor * this.numTuples);
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -10,14 +10,31 @@ import java.io.*;
 public class Transaction {
     TransactionId tid;
     boolean started = false;
+    boolean readOnly = false;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Creates a transaction that is read-only if readOnly is set: it reads
+     * a snapshot of the committed state of the database, taken when it
+     * starts, without taking locks, and is not logged.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
+        this();
+        this.readOnly = readOnly;
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -44,7 +61,9 @@ public class Transaction {
 
         if (started) {
             //write commit / abort records
-            if (abort) {
+            if (readOnly) {
+                // nothing to write
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
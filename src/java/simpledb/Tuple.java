@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -10,6 +12,10 @@ import simpledb.TupleDesc.TDItem;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read by a scan that only needed some of its fields may leave the
+ * others undecoded; they are decoded from the page the tuple was read from,
+ * at the slot of its RecordId, the first time they are asked for.
  */
 public class Tuple implements Serializable {
 
@@ -17,6 +23,8 @@ public class Tuple implements Serializable {
 	private Field[] fields;
     private static final long serialVersionUID = 1L;
     private RecordId rid;
+    /** The page undecoded fields are read from, or null if there are none */
+    private transient HeapPage source;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -47,12 +55,17 @@ public class Tuple implements Serializable {
     }
 
     /**
-     * Set the RecordId information for this tuple.
+     * Set the RecordId information for this tuple. The fields that have not
+     * been decoded yet are decoded first, from the slot the tuple was read
+     * from, since the new RecordId names another one.
      * 
      * @param rid
      *            the new RecordId for this tuple.
      */
     public void setRecordId(RecordId rid) {
+        if (source != null && (rid == null || !rid.equals(this.rid))) {
+            materialize();
+        }
         this.rid = rid;
     }
 
@@ -76,9 +89,37 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
+        if (fields[i] == null && source != null) {
+            fields[i] = source.decodeField(rid.tupleno(), i);
+        }
         return fields[i];
     }
 
+    /**
+     * Records that the fields of this tuple that have not been set are to
+     * be decoded from the specified page when they are first asked for.
+     */
+    void setSource(HeapPage page) {
+        this.source = page;
+    }
+
+    /**
+     * Decodes all the fields that have not been decoded yet.
+     */
+    private void materialize() {
+        if (source != null) {
+            for (int i = 0; i < fields.length; i++) {
+                getField(i);
+            }
+            source = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -88,6 +129,7 @@ public class Tuple implements Serializable {
      * where \t is any whitespace, except newline, and \n is a newline
      */
     public String toString() {
+    	materialize();
     	String s = "" + fields[0];
         for (int i = 1; i < fields.length; i++) { 
         	s += "\t" + fields[i];
@@ -100,6 +142,7 @@ public class Tuple implements Serializable {
      *        An iterator which iterates over all the fields of this tuple
      * */
     public Iterator<Field> fields() {
+    	materialize();
     	return Arrays.asList(fields).iterator();
     }
     
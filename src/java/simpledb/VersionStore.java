@@ -0,0 +1,295 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * VersionStore keeps the committed versions of HeapPages that read-only
+ * transactions need to read a consistent snapshot of the database without
+ * taking locks.
+ * <p>
+ * Every commit of a transaction that changed HeapPages gets a commit
+ * sequence number (CSN), and a snapshot is the CSN of the last commit
+ * before it began: it sees the changes of that commit and of the ones
+ * before, and none of the later ones. The HeapPage format has no room for
+ * version stamps on tuples, so versions are kept per page, in memory:
+ * <ul>
+ * <li> the committed state of a page is its before image, which is set
+ * when a transaction that changed it commits;
+ * <li> when a transaction first changes a page, the committed state is
+ * kept here until the transaction completes, since a stolen page read
+ * back from disk no longer has it;
+ * <li> when a transaction commits while snapshots are open, the committed
+ * states it replaces are kept here, marked with its CSN, until no open
+ * snapshot is older than that.
+ * </ul>
+ * Transactions whose changes are logged lock rows rather than pages, so a
+ * page can be changed by several running transactions at once. When one
+ * of them commits, the committed state kept here gets the rows it changed,
+ * and stays here until the last of them completes.
+ * The methods are called by the BufferPool.
+ */
+class VersionStore {
+
+    /** A committed state of a page, replaced by the commit numbered until */
+    private static class Version {
+        final Page image;
+        final long until;
+
+        Version(Page image, long until) {
+            this.image = image;
+            this.until = until;
+        }
+    }
+
+    /** The CSN of the last commit */
+    private long lastCsn;
+    /** The open snapshots, and how many transactions read each */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+    private final Map<TransactionId, Long> snapshotOf = new HashMap<TransactionId, Long>();
+    /** The pages each running transaction changed */
+    private final Map<TransactionId, Set<PageId>> written = new HashMap<TransactionId, Set<PageId>>();
+    /** The rows each running transaction changed, on pages it may share */
+    private final Map<TransactionId, Set<RecordId>> rows = new HashMap<TransactionId, Set<RecordId>>();
+    /** The committed state of the pages changed by running transactions */
+    private final Map<PageId, Page> committed = new HashMap<PageId, Page>();
+    /** Replaced committed states still needed by a snapshot, oldest first */
+    private final Map<PageId, LinkedList<Version>> old = new HashMap<PageId, LinkedList<Version>>();
+    /** The committed state of pages in the BufferPool that snapshots read,
+        so that it is not parsed for every read */
+    private final Map<PageId, Page> images = new HashMap<PageId, Page>();
+
+    /**
+     * Opens a snapshot of the committed state of the database for tid.
+     *
+     * @return the snapshot
+     */
+    synchronized long beginSnapshot(TransactionId tid) {
+        Long snapshot = snapshotOf.get(tid);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        snapshotOf.put(tid, lastCsn);
+        Integer n = snapshots.get(lastCsn);
+        snapshots.put(lastCsn, n == null ? 1 : n + 1);
+        return lastCsn;
+    }
+
+    /**
+     * @return the snapshot tid reads, or null if it has none
+     */
+    synchronized Long snapshotOf(TransactionId tid) {
+        return snapshotOf.get(tid);
+    }
+
+    /**
+     * Returns the version of a page that the specified snapshot sees.
+     *
+     * @param p the page, as it is in the BufferPool
+     */
+    synchronized Page read(PageId pid, long snapshot, HeapPage p) {
+        LinkedList<Version> versions = old.get(pid);
+        if (versions != null) {
+            for (Version v : versions) {
+                if (v.until > snapshot) {
+                    return v.image;
+                }
+            }
+        }
+        Page image = committed.get(pid);
+        if (image == null) {
+            image = images.get(pid);
+        }
+        if (image == null) {
+            image = p.getBeforeImage();
+            images.put(pid, image);
+        }
+        return image;
+    }
+
+    /**
+     * Notes that tid changed the specified page, which still has the
+     * committed state as its before image if tid did not change it before.
+     */
+    synchronized void changed(TransactionId tid, HeapPage p) {
+        Set<PageId> pids = written.get(tid);
+        if (pids == null) {
+            pids = new HashSet<PageId>();
+            written.put(tid, pids);
+        }
+        if (pids.add(p.getId()) && !committed.containsKey(p.getId())) {
+            Page image = images.get(p.getId());
+            committed.put(p.getId(), image != null ? image : p.getBeforeImage());
+        }
+    }
+
+    /**
+     * Notes that tid changed the specified row, of a page it changed.
+     */
+    synchronized void changed(TransactionId tid, RecordId rid) {
+        Set<RecordId> rids = rows.get(tid);
+        if (rids == null) {
+            rids = new HashSet<RecordId>();
+            rows.put(tid, rids);
+        }
+        rids.add(rid);
+    }
+
+    /**
+     * @return true if a running transaction other than tid changed the
+     *         specified page
+     */
+    private boolean sharedWith(TransactionId tid, PageId pid) {
+        for (Map.Entry<TransactionId, Set<PageId>> e : written.entrySet()) {
+            if (!e.getKey().equals(tid) && e.getValue().contains(pid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the pages tid changed
+     */
+    synchronized Set<PageId> written(TransactionId tid) {
+        Set<PageId> pids = written.get(tid);
+        return pids == null ? Collections.<PageId>emptySet() : new HashSet<PageId>(pids);
+    }
+
+    /**
+     * Makes the changes of tid the committed state, as one commit.
+     *
+     * @param ps the pages tid changed that are in the BufferPool; they
+     *            become the committed state
+     */
+    synchronized void commit(TransactionId tid, Collection<Page> ps) {
+        Set<PageId> pids = written.remove(tid);
+        Set<RecordId> rids = rows.remove(tid);
+        if (rids == null) {
+            rids = Collections.emptySet();
+        }
+        Set<PageId> shared = new HashSet<PageId>();
+        if (pids != null) {
+            lastCsn++;
+            Map<PageId, Page> live = new HashMap<PageId, Page>();
+            for (Page p : ps) {
+                live.put(p.getId(), p);
+            }
+            for (PageId pid : pids) {
+                Page image;
+                if (sharedWith(tid, pid)) {
+                    // the page has changes of others too: the committed
+                    // state gets only the rows of tid
+                    shared.add(pid);
+                    image = committed.get(pid);
+                    committed.put(pid, withRows(image, rids, live.get(pid)));
+                } else {
+                    image = committed.remove(pid);
+                }
+                images.remove(pid);
+                // open snapshots are all older than this commit
+                if (image != null && !snapshots.isEmpty()) {
+                    LinkedList<Version> versions = old.get(pid);
+                    if (versions == null) {
+                        versions = new LinkedList<Version>();
+                        old.put(pid, versions);
+                    }
+                    versions.add(new Version(image, lastCsn));
+                }
+            }
+        }
+        for (Page p : ps) {
+            if (!shared.contains(p.getId())) {
+                p.setBeforeImage();
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the specified committed state of a page, with the
+     *         specified rows of it as they are in the page now
+     * @param p the page, or null if it is not in the BufferPool, in which
+     *            case it is read: it was written when it was evicted
+     */
+    private Page withRows(Page image, Set<RecordId> rids, Page p) {
+        PageId pid = image.getId();
+        if (p == null) {
+            p = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+        }
+        HeapPage next = ((HeapPage) image).getBeforeImage();
+        try {
+            for (RecordId rid : rids) {
+                if (rid.getPageId().equals(pid)) {
+                    next.setSlot(rid.tupleno(), ((HeapPage) p).getTuple(rid.tupleno()));
+                }
+            }
+        } catch (DbException e) {
+            throw new RuntimeException("could not copy the rows of " + pid + ": " + e.getMessage());
+        }
+        next.setBeforeImage();
+        return next;
+    }
+
+    /**
+     * Forgets the changes of tid, whose pages were put back as they were.
+     *
+     * @param ps the pages tid changed that are in the BufferPool; their
+     *            contents are the committed state again
+     */
+    synchronized void abort(TransactionId tid, Collection<Page> ps) {
+        Set<PageId> pids = written.remove(tid);
+        rows.remove(tid);
+        Set<PageId> shared = new HashSet<PageId>();
+        if (pids != null) {
+            for (PageId pid : pids) {
+                if (sharedWith(tid, pid)) {
+                    // still the committed state
+                    shared.add(pid);
+                } else {
+                    committed.remove(pid);
+                }
+                images.remove(pid);
+            }
+        }
+        for (Page p : ps) {
+            if (!shared.contains(p.getId())) {
+                p.setBeforeImage();
+            }
+        }
+    }
+
+    /**
+     * Notes that a page left the BufferPool.
+     */
+    synchronized void evicted(PageId pid) {
+        images.remove(pid);
+    }
+
+    /**
+     * Closes the snapshot of tid, if it has one, and drops the versions no
+     * open snapshot needs any more.
+     */
+    synchronized void endSnapshot(TransactionId tid) {
+        Long snapshot = snapshotOf.remove(tid);
+        if (snapshot == null) {
+            return;
+        }
+        int n = snapshots.remove(snapshot);
+        if (n > 1) {
+            snapshots.put(snapshot, n - 1);
+        }
+        if (snapshots.isEmpty()) {
+            old.clear();
+            return;
+        }
+        long oldest = snapshots.firstKey();
+        for (Iterator<LinkedList<Version>> it = old.values().iterator(); it.hasNext(); ) {
+            LinkedList<Version> versions = it.next();
+            while (!versions.isEmpty() && versions.getFirst().until <= oldest) {
+                versions.removeFirst();
+            }
+            if (versions.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ZoneMap keeps the minimum and maximum value of every INT_TYPE column on
+ * every page of a HeapFile, so that scans can skip the pages that cannot
+ * hold a tuple satisfying a predicate.
+ * <p>
+ * The summaries are conservative: inserts widen them, but deletes never
+ * narrow them, so a page whose summary admits a value may hold no such
+ * tuple, but a page that holds one is never skipped. A page without a
+ * summary (for instance one appended to the file behind the back of the
+ * HeapFile) is never skipped either.
+ * <p>
+ * The summaries are stored in a sidecar file next to the heap file
+ * (<tt>&lt;file&gt;.zm</tt>): a header with the modification time of the heap
+ * file when the sidecar was last written, followed by a record of
+ * (min, max) pairs per page. Before a page is written, the time in the
+ * header is cleared; the summary is written right after the page, and the
+ * header is stamped again once no page write is in progress. So if the
+ * heap file was modified since -- by a crash between the two writes or by
+ * another program -- the times do not match and the sidecar is rebuilt from
+ * the heap file, even if the page was written within the same tick of the
+ * clock as the last summary.
+ *
+ * @see HeapFile#getZoneMap
+ */
+public class ZoneMap {
+
+    /** Bytes used by the header of the sidecar file. */
+    static final int HEADER_SIZE = 8 + 4;
+
+    private HeapFile heapFile;
+    private File sidecar;
+    /** The position of each field among the INT_TYPE fields, or -1 */
+    private int[] zoneIndex;
+    private int numZones;
+
+    private int[] mins;
+    private int[] maxs;
+    private int numPages;
+    private boolean loaded;
+    /** The sidecar file, kept open once it is first written */
+    private RandomAccessFile out;
+    /** Whether the header of the sidecar file holds a time */
+    private boolean stamped;
+    /** The number of page writes in progress */
+    private int writing;
+
+    /**
+     * Creates the zone map of the specified heap file. Nothing is read until
+     * the zone map is first used.
+     */
+    public ZoneMap(HeapFile heapFile) {
+        this.heapFile = heapFile;
+        this.sidecar = new File(heapFile.getFile().getPath() + ".zm");
+        TupleDesc td = heapFile.getTupleDesc();
+        zoneIndex = new int[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            zoneIndex[i] = td.getFieldType(i) == Type.INT_TYPE ? numZones++ : -1;
+        }
+        mins = new int[0];
+        maxs = new int[0];
+    }
+
+    /**
+     * Returns false if no tuple on the specified page can satisfy all of the
+     * specified predicates, and true if some might.
+     */
+    public synchronized boolean mayMatch(int pgNo, List<Predicate> preds) {
+        if (numZones == 0 || preds.isEmpty())
+            return true;
+        load();
+        if (pgNo >= numPages)
+            return true;
+        for (Predicate p : preds) {
+            if (!mayMatch(pgNo, p))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean mayMatch(int pgNo, Predicate p) {
+        int z = zoneIndex[p.getField()];
+        if (z < 0 || !(p.getOperand() instanceof IntField))
+            return true;
+        int min = mins[pgNo * numZones + z];
+        int max = maxs[pgNo * numZones + z];
+        if (min > max)
+            return false; // no tuples on the page
+        int v = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            return min <= v && v <= max;
+        case NOT_EQUALS:
+            return !(min == v && max == v);
+        case GREATER_THAN:
+            return max > v;
+        case GREATER_THAN_OR_EQ:
+            return max >= v;
+        case LESS_THAN:
+            return min < v;
+        case LESS_THAN_OR_EQ:
+            return min <= v;
+        }
+        return true;
+    }
+
+    /**
+     * Records that the specified page was just appended to the file and
+     * holds no tuples yet. Does nothing if the page is already known, as
+     * its summary may have been widened since.
+     */
+    public synchronized void setEmpty(int pgNo) {
+        if (numZones == 0)
+            return;
+        load();
+        if (pgNo < numPages)
+            return;
+        ensurePages(pgNo + 1);
+        for (int z = 0; z < numZones; z++) {
+            mins[pgNo * numZones + z] = Integer.MAX_VALUE;
+            maxs[pgNo * numZones + z] = Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Widens the summary of the specified page to include the values of t.
+     */
+    public synchronized void widen(int pgNo, Tuple t) {
+        if (numZones == 0)
+            return;
+        load();
+        if (pgNo >= numPages)
+            return; // unknown page, never skipped anyway
+        for (int i = 0; i < zoneIndex.length; i++) {
+            int z = zoneIndex[i];
+            if (z < 0)
+                continue;
+            int v = ((IntField) t.getField(i)).getValue();
+            int off = pgNo * numZones + z;
+            if (v < mins[off])
+                mins[off] = v;
+            if (v > maxs[off])
+                maxs[off] = v;
+        }
+    }
+
+    /**
+     * Widens the summary of a page to include all of its tuples, so that
+     * whatever image of the page reaches the disk is covered, and clears the
+     * time in the header of the sidecar file until the summary is written;
+     * called by HeapFile before the page is written.
+     */
+    public synchronized void beforeWrite(HeapPage page) throws IOException {
+        if (numZones == 0)
+            return;
+        widen(page);
+        writing++;
+        if (stamped) {
+            RandomAccessFile raf = sidecar();
+            raf.seek(0);
+            raf.writeLong(0);
+            stamped = false;
+        }
+    }
+
+    /**
+     * Widens the summary of a page to include all of its tuples.
+     */
+    private void widen(HeapPage page) {
+        if (numZones == 0)
+            return;
+        load();
+        int pgNo = page.getId().pageNumber();
+        if (pgNo >= numPages)
+            return;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            widen(pgNo, it.next());
+    }
+
+    /**
+     * Writes the summary of the specified page to the sidecar file, and
+     * stamps its header if no other page is being written; called by
+     * HeapFile after the page itself has been written, or has failed to be.
+     */
+    public synchronized void persist(int pgNo) throws IOException {
+        if (numZones == 0)
+            return;
+        writing--;
+        RandomAccessFile raf = sidecar();
+        if (pgNo < numPages) {
+            raf.seek(recordOffset(pgNo));
+            raf.write(record(pgNo));
+        }
+        if (writing == 0)
+            writeHeader(raf);
+    }
+
+    private RandomAccessFile sidecar() throws IOException {
+        if (out == null)
+            out = new RandomAccessFile(sidecar, "rw");
+        return out;
+    }
+
+    private long recordOffset(int pgNo) {
+        return HEADER_SIZE + (long) pgNo * numZones * 8;
+    }
+
+    private byte[] record(int pgNo) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(numZones * 8);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int z = 0; z < numZones; z++) {
+            dos.writeInt(mins[pgNo * numZones + z]);
+            dos.writeInt(maxs[pgNo * numZones + z]);
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        raf.writeLong(heapFile.getFile().lastModified());
+        raf.writeInt(numZones);
+        stamped = true;
+    }
+
+    private void ensurePages(int n) {
+        if (n <= numPages)
+            return;
+        if (n * numZones > mins.length) {
+            int cap = Math.max(n, 2 * mins.length / Math.max(numZones, 1)) * numZones;
+            mins = Arrays.copyOf(mins, cap);
+            maxs = Arrays.copyOf(maxs, cap);
+        }
+        // pages in between are unknown: never skip them
+        Arrays.fill(mins, numPages * numZones, n * numZones, Integer.MIN_VALUE);
+        Arrays.fill(maxs, numPages * numZones, n * numZones, Integer.MAX_VALUE);
+        numPages = n;
+    }
+
+    /**
+     * Reads the sidecar file, or rebuilds it from the heap file if it is
+     * missing or out of date.
+     */
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        int filePages = heapFile.numPages();
+        try {
+            if (readSidecar(filePages))
+                return;
+        } catch (IOException e) {
+            // fall through and rebuild it
+        }
+        rebuild(filePages);
+    }
+
+    private boolean readSidecar(int filePages) throws IOException {
+        if (!sidecar.exists()
+                || sidecar.length() != recordOffset(filePages))
+            return false;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(sidecar)));
+        try {
+            if (dis.readLong() != heapFile.getFile().lastModified()
+                    || dis.readInt() != numZones)
+                return false;
+            ensurePages(filePages);
+            for (int i = 0; i < filePages * numZones; i++) {
+                mins[i] = dis.readInt();
+                maxs[i] = dis.readInt();
+            }
+            return true;
+        } finally {
+            dis.close();
+            stamped = true;
+        }
+    }
+
+    private void rebuild(int filePages) {
+        numPages = 0;
+        ensurePages(filePages);
+        for (int pgNo = 0; pgNo < filePages; pgNo++) {
+            for (int z = 0; z < numZones; z++) {
+                mins[pgNo * numZones + z] = Integer.MAX_VALUE;
+                maxs[pgNo * numZones + z] = Integer.MIN_VALUE;
+            }
+            // read around the BufferPool, which needs no locks. Inserts load
+            // the zone map before widening it, so no cached page can hold a
+            // tuple that was inserted before this rebuild.
+            HeapPage page = (HeapPage) heapFile.readPage(
+                    new HeapPageId(heapFile.getId(), pgNo));
+            widen(page);
+        }
+        try {
+            RandomAccessFile raf = sidecar();
+            raf.setLength(recordOffset(filePages));
+            raf.seek(recordOffset(0));
+            for (int pgNo = 0; pgNo < filePages; pgNo++)
+                raf.write(record(pgNo));
+            writeHeader(raf);
+        } catch (IOException e) {
+            // the summaries in memory are still valid
+            e.printStackTrace();
+        }
+    }
+}